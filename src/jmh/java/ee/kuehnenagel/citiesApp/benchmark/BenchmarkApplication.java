@@ -0,0 +1,33 @@
+package ee.kuehnenagel.citiesApp.benchmark;
+
+import ee.kuehnenagel.citiesApp.CitiesAppApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Path;
+
+/**
+ * Starts the application without the web layer against its own in-memory database, with sql logging off so the
+ * benchmarks measure the data access rather than the console.
+ */
+public final class BenchmarkApplication {
+
+    private BenchmarkApplication() {
+    }
+
+    public static ConfigurableApplicationContext start(Path csv, Path imagesDir) {
+        return new SpringApplicationBuilder(CitiesAppApplication.class)
+                .web(WebApplicationType.NONE)
+                .logStartupInfo(false)
+                .properties(
+                        "spring.main.banner-mode=off",
+                        "spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "spring.sql.init.mode=never",
+                        "spring.jpa.show-sql=false",
+                        "logging.level.root=WARN",
+                        "cities.import.csv.path=" + csv.toAbsolutePath(),
+                        "cities.images.dir=" + imagesDir.toAbsolutePath())
+                .run();
+    }
+}
@@ -0,0 +1,78 @@
+package ee.kuehnenagel.citiesApp.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic synthetic data for the benchmarks, so runs of different commits measure the same input.
+ */
+public final class SyntheticCities {
+
+    private static final String[] SYLLABLES = {"ta", "lin", "tar", "tu", "nar", "va", "pär", "nu", "vil", "jan",
+            "di", "ra", "kve", "re", "haap", "sa", "lu", "kär", "dla", "ot", "e", "pä", "jõ", "gi", "valk"};
+
+    private SyntheticCities() {
+    }
+
+    /**
+     * Title of the city with the given id. Titles are made of syllables and the id, so every title is unique and
+     * a title or its syllable part finds a handful of cities.
+     */
+    public static String title(long id) {
+        Random random = new Random(id);
+        StringBuilder title = new StringBuilder();
+        int syllables = 2 + random.nextInt(3);
+        for (int i = 0; i < syllables; i++) {
+            title.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        title.setCharAt(0, Character.toUpperCase(title.charAt(0)));
+        return title.append(' ').append(id).toString();
+    }
+
+    public static String imageUrl(long id) {
+        return "https://img.example.com/cities/" + id + ".jpg";
+    }
+
+    /**
+     * Writes a csv in the import format with ids 1 to cities.
+     */
+    public static Path writeCsv(Path dir, int cities) throws IOException {
+        Path csv = dir.resolve("cities-" + cities + ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            writer.write("id,name,photo\n");
+            for (long id = 1; id <= cities; id++) {
+                writer.write(Long.toString(id));
+                writer.write(',');
+                writer.write(title(id));
+                writer.write(',');
+                writer.write(imageUrl(id));
+                writer.write('\n');
+            }
+        }
+        return csv;
+    }
+
+    /**
+     * Random bytes standing in for an encoded image, random content does not compress and is never deduplicated.
+     */
+    public static byte[] image(int bytes, long seed) {
+        byte[] content = new byte[bytes];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ee.kuehnenagel.citiesApp.repo;
+
+import ee.kuehnenagel.citiesApp.benchmark.BenchmarkApplication;
+import ee.kuehnenagel.citiesApp.benchmark.SyntheticCities;
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.service.CityService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Title search through {@link CityRepository#findByTitle(String)} on an imported table. Every call looks for the
+ * full title of a random city, so each search matches a handful of rows and the time is spent in the scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CityRepositoryBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    private int cities;
+
+    private Path dir;
+
+    private ConfigurableApplicationContext context;
+
+    private CityRepository cityRepository;
+
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("repository-benchmark");
+        context = BenchmarkApplication.start(SyntheticCities.writeCsv(dir, cities), dir.resolve("images"));
+        context.getBean(CityService.class).initCitiesCsvDataToDb();
+        cityRepository = context.getBean(CityRepository.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        SyntheticCities.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<City> findByTitle() {
+        return cityRepository.findByTitle(SyntheticCities.title(1 + random.nextInt(cities)));
+    }
+}
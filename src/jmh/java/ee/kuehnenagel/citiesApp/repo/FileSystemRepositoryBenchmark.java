@@ -0,0 +1,72 @@
+package ee.kuehnenagel.citiesApp.repo;
+
+import ee.kuehnenagel.citiesApp.benchmark.SyntheticCities;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming images into the content-addressed store: a new image, which is hashed while copied to a temporary file
+ * and moved into place, and an image that is already stored, whose copy is dropped. The store is emptied after every
+ * iteration to bound the disk usage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemRepositoryBenchmark {
+
+    @Param({"16384", "262144", "1048576"})
+    private int imageBytes;
+
+    private Path dir;
+
+    private FileSystemRepository fileSystemRepository;
+
+    private byte[] image;
+
+    private long imageNumber;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("image-benchmark");
+        fileSystemRepository = new FileSystemRepository(dir.toString(), Long.MAX_VALUE);
+        image = SyntheticCities.image(imageBytes, 42);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearStore() throws IOException {
+        SyntheticCities.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public StoredImage saveNewCityImage() throws IOException {
+        ByteBuffer.wrap(image).putLong(++imageNumber);
+        return fileSystemRepository.saveCityImage(new ByteArrayInputStream(image), ".jpg");
+    }
+
+    @Benchmark
+    public StoredImage saveStoredCityImage() throws IOException {
+        return fileSystemRepository.saveCityImage(new ByteArrayInputStream(image), ".jpg");
+    }
+}
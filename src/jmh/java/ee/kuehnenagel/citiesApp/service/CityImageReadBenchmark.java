@@ -0,0 +1,101 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.benchmark.SyntheticCities;
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import ee.kuehnenagel.citiesApp.utils.StatusEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving the stored image of a random city through {@link CityServiceImpl#getCityImage(City)}, read to the end as
+ * the controller would. Without the in-memory cache every read resolves and streams the file, with it the hot
+ * images come from memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CityImageReadBenchmark {
+
+    private static final int IMAGE_BYTES = 32 * 1024;
+
+    /**
+     * One file per city, so the largest store is kept well below the table sizes of the other benchmarks.
+     */
+    @Param({"1000", "10000", "100000"})
+    private int cities;
+
+    @Param({"false", "true"})
+    private boolean cached;
+
+    private Path dir;
+
+    private CityServiceImpl cityService;
+
+    private City[] storedCities;
+
+    private final Random random = new Random(42);
+
+    private final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("image-read-benchmark");
+        FileSystemRepository fileSystemRepository = new FileSystemRepository(dir.toString(), Long.MAX_VALUE);
+        CityImageCache cityImageCache = new CityImageCache(256L * 1024 * 1024, cached ? IMAGE_BYTES : 0,
+                new SimpleMeterRegistry());
+        cityService = new CityServiceImpl(null, null, fileSystemRepository, null, cityImageCache, null, null,
+                new CityMetrics(new SimpleMeterRegistry()), null);
+
+        storedCities = new City[cities];
+        for (int i = 0; i < cities; i++) {
+            long id = i + 1;
+            StoredImage storedImage = fileSystemRepository.saveCityImage(
+                    new ByteArrayInputStream(SyntheticCities.image(IMAGE_BYTES, id)), ".jpg");
+            storedCities[i] = new City(id, SyntheticCities.title(id), storedImage.getPath().toString(),
+                    StatusEnum.DOWNLOADED.name(), storedImage.getHash(), storedImage.getStoredAt());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCities.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void getCityImage(Blackhole blackhole) throws IOException {
+        Resource image = cityService.getCityImage(storedCities[random.nextInt(cities)]);
+        try (InputStream is = image.getInputStream()) {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                blackhole.consume(n);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.benchmark.BenchmarkApplication;
+import ee.kuehnenagel.citiesApp.benchmark.SyntheticCities;
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The csv import against the in-memory database: a full import into an empty table, and a sync of an unchanged
+ * csv, which only compares row hashes. Every measurement is one import, so the sizes up to 10M stay affordable.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CityImportBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Application {
+
+        @Param({"1000", "100000", "1000000", "10000000"})
+        private int cities;
+
+        private Path dir;
+
+        private ConfigurableApplicationContext context;
+
+        CityService cityService;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("import-benchmark");
+            context = BenchmarkApplication.start(SyntheticCities.writeCsv(dir, cities), dir.resolve("images"));
+            cityService = context.getBean(CityService.class);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            context.close();
+            SyntheticCities.deleteRecursively(dir);
+        }
+
+        void clearCities() {
+            context.getBean(JdbcTemplate.class).execute("TRUNCATE TABLE cities");
+            context.getBean(CacheManager.class).getCache(CityRepository.CITIES_CACHE).clear();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyTable {
+
+        @Setup(Level.Invocation)
+        public void setUp(Application application) {
+            application.clearCities();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ImportedTable {
+
+        @Setup(Level.Trial)
+        public void setUp(Application application) {
+            application.clearCities();
+            application.cityService.initCitiesCsvDataToDb();
+        }
+    }
+
+    @Benchmark
+    public Boolean initCitiesCsvDataToDb(Application application, EmptyTable emptyTable) {
+        return application.cityService.initCitiesCsvDataToDb();
+    }
+
+    @Benchmark
+    public CitySyncResult syncUnchangedCsv(Application application, ImportedTable importedTable) {
+        return application.cityService.syncCitiesFromCsv();
+    }
+}
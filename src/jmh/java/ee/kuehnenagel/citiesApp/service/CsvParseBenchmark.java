@@ -0,0 +1,77 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.benchmark.SyntheticCities;
+import ee.kuehnenagel.citiesApp.utils.CsvRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Parsing the whole csv through {@link CityServiceImpl#streamCsvRecords()}, the stream the import and the sync read,
+ * without the database. Sequential parsing is compared with chunks parsed in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CsvParseBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    private int cities;
+
+    @Param({"1", "4"})
+    private int parallelism;
+
+    private Path dir;
+
+    private CityServiceImpl cityService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("csv-benchmark");
+        Path csv = SyntheticCities.writeCsv(dir, cities);
+        cityService = new CityServiceImpl(null, null, null, null, null, null, null,
+                new CityMetrics(new SimpleMeterRegistry()), null);
+        setField("csvPath", csv.toString());
+        setField("csvParallelism", parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCities.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void streamCsvRecords(Blackhole blackhole) throws IOException {
+        try (Stream<CsvRecord> records = cityService.streamCsvRecords()) {
+            records.forEach(blackhole::consume);
+        }
+    }
+
+    private void setField(String name, Object value) throws ReflectiveOperationException {
+        Field field = CityServiceImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(cityService, value);
+    }
+}
@@ -0,0 +1,22 @@
+package ee.kuehnenagel.citiesApp.loadtest;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Endpoints driven by the load test, with the default share of the traffic each gets.
+ */
+@Getter
+@AllArgsConstructor
+public enum Endpoint {
+
+    CITY("GET /city/{id}", 35),
+    IMAGE("GET /city/{id}/image", 35),
+    SEARCH("GET /city/search", 20),
+    TITLES("GET /city/titles", 5),
+    UPLOAD("POST /city/{id}/uploadFile", 5);
+
+    private final String label;
+
+    private final int defaultWeight;
+}
@@ -0,0 +1,101 @@
+package ee.kuehnenagel.citiesApp.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for the remote image host. Every path answers with an image of its own, after the configured
+ * latency plus a random jitter, and a share of the requests fails with 503.
+ */
+@Slf4j
+public class ImageStubServer implements AutoCloseable {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final long latencyMillis;
+
+    private final long jitterMillis;
+
+    private final double failureRate;
+
+    private final int imageBytes;
+
+    private final LongAdder served = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    public ImageStubServer(long latencyMillis, long jitterMillis, double failureRate, int imageBytes) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.failureRate = failureRate;
+        this.imageBytes = imageBytes;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    /**
+     * @return the url of the image of the city, the path mimics the commons layout
+     */
+    public String getImageUrl(long cityId) {
+        return "http://127.0.0.1:" + server.getAddress().getPort()
+                + "/wikipedia/commons/thumb/" + cityId + "/City_" + cityId + ".jpg";
+    }
+
+    public long getServed() {
+        return served.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            sleep(latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0));
+            if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failed.increment();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            // the content depends on the path only, so a repeated download stores the same file
+            byte[] image = new byte[imageBytes];
+            new Random(exchange.getRequestURI().getPath().hashCode()).nextBytes(image);
+            exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, image.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(image);
+            }
+            served.increment();
+        } catch (IOException e) {
+            log.debug("Stub image request failed: {}", e.getMessage());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
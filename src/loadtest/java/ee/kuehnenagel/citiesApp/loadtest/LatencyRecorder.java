@@ -0,0 +1,78 @@
+package ee.kuehnenagel.citiesApp.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies and response statuses of one endpoint. All samples are kept, so percentiles are exact.
+ */
+public class LatencyRecorder {
+
+    private long[] latencies = new long[1024];
+
+    private int count;
+
+    private final Map<Integer, Integer> statuses = new TreeMap<>();
+
+    /**
+     * @param status response status, 0 when the request failed without a response
+     */
+    public synchronized void record(long latencyNanos, int status) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        statuses.merge(status, 1, Integer::sum);
+    }
+
+    public synchronized Summary summarize(double seconds) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int errors = statuses.entrySet().stream()
+                .filter(status -> status.getKey() == 0 || status.getKey() >= 400)
+                .mapToInt(Map.Entry::getValue)
+                .sum();
+        return new Summary(count, errors, count / seconds, percentile(sorted, 0.5), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), count > 0 ? sorted[count - 1] : 0, new TreeMap<>(statuses));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public static final class Summary {
+
+        final int requests;
+
+        final int errors;
+
+        final double throughput;
+
+        final long p50;
+
+        final long p99;
+
+        final long p999;
+
+        final long max;
+
+        final Map<Integer, Integer> statuses;
+
+        Summary(int requests, int errors, double throughput, long p50, long p99, long p999, long max,
+                Map<Integer, Integer> statuses) {
+            this.requests = requests;
+            this.errors = errors;
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+            this.statuses = statuses;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package ee.kuehnenagel.citiesApp.loadtest;
+
+import ee.kuehnenagel.citiesApp.CitiesAppApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test. Boots the application on a random port against a local image stub server, imports a
+ * synthetic csv whose image urls point at the stub, drives mixed traffic from concurrent clients and reports
+ * throughput and latency percentiles per endpoint.
+ * <p>
+ * The clients run in the same JVM as the application, so compare runs made on the same machine only.
+ */
+public class LoadTest {
+
+    private static final String MULTIPART_BOUNDARY = "loadtest-boundary";
+
+    private final LoadTestOptions options;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    private final Map<Endpoint, LatencyRecorder> recorders = new EnumMap<>(Endpoint.class);
+
+    private final Endpoint[] endpointsByWeight;
+
+    private final byte[] uploadBody;
+
+    private String baseUrl;
+
+    private volatile boolean recording;
+
+    private volatile boolean running = true;
+
+    public LoadTest(LoadTestOptions options) {
+        this.options = options;
+        List<Endpoint> endpoints = new ArrayList<>();
+        options.getWeights().forEach((endpoint, weight) -> {
+            recorders.put(endpoint, new LatencyRecorder());
+            for (int i = 0; i < weight; i++) {
+                endpoints.add(endpoint);
+            }
+        });
+        this.endpointsByWeight = endpoints.toArray(new Endpoint[0]);
+        this.uploadBody = buildUploadBody(options.getUploadImageBytes());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(LoadTestOptions.parse(args)).run();
+    }
+
+    public void run() throws Exception {
+        Path dir = Files.createTempDirectory("citiesApp-loadtest");
+        try (ImageStubServer stub = new ImageStubServer(options.getStubLatencyMillis(), options.getStubJitterMillis(),
+                options.getStubFailureRate(), options.getStubImageBytes());
+             ConfigurableApplicationContext context = startApplication(writeCsv(dir, stub), dir.resolve("images"))) {
+            baseUrl = "http://127.0.0.1:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+            HttpResponse<String> sync = send(HttpRequest.newBuilder(URI.create(baseUrl + "/sync"))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            System.out.println("Imported: " + sync.body());
+
+            List<Thread> clients = new ArrayList<>();
+            for (int i = 0; i < options.getClients(); i++) {
+                Thread client = new Thread(this::drive, "loadtest-client-" + i);
+                client.start();
+                clients.add(client);
+            }
+            Thread.sleep(options.getWarmupSeconds() * 1000L);
+            recording = true;
+            long startedAt = System.nanoTime();
+            Thread.sleep(options.getDurationSeconds() * 1000L);
+            recording = false;
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            running = false;
+            for (Thread client : clients) {
+                client.join();
+            }
+            report(seconds, stub);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private ConfigurableApplicationContext startApplication(Path csv, Path imagesDir) {
+        List<String> args = new ArrayList<>(List.of(
+                "--server.port=0",
+                "--spring.main.banner-mode=off",
+                "--spring.jpa.show-sql=false",
+                "--logging.level.root=WARN",
+                "--cities.images.allow-local-urls=true",
+                "--cities.import.csv.path=" + csv.toAbsolutePath(),
+                "--cities.images.dir=" + imagesDir.toAbsolutePath()));
+        args.addAll(options.getApplicationArgs());
+        return new SpringApplicationBuilder(CitiesAppApplication.class)
+                .logStartupInfo(false)
+                .run(args.toArray(new String[0]));
+    }
+
+    private Path writeCsv(Path dir, ImageStubServer stub) throws IOException {
+        Path csv = dir.resolve("cities.csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            writer.write("id,name,photo\n");
+            for (long id = 1; id <= options.getCities(); id++) {
+                writer.write(id + "," + title(id) + "," + stub.getImageUrl(id) + "\n");
+            }
+        }
+        return csv;
+    }
+
+    private static String title(long id) {
+        return "City " + id;
+    }
+
+    private void drive() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            Endpoint endpoint = endpointsByWeight[random.nextInt(endpointsByWeight.length)];
+            long cityId = 1 + random.nextInt(options.getCities());
+            HttpRequest request = buildRequest(endpoint, cityId);
+            long startedAt = System.nanoTime();
+            int status;
+            try {
+                status = send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (IOException e) {
+                status = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (recording) {
+                recorders.get(endpoint).record(System.nanoTime() - startedAt, status);
+            }
+        }
+    }
+
+    private HttpRequest buildRequest(Endpoint endpoint, long cityId) {
+        switch (endpoint) {
+            case CITY:
+                return get("/city/" + cityId);
+            case IMAGE:
+                return get("/city/" + cityId + "/image");
+            case SEARCH:
+                return get("/city/search?searchText=" + URLEncoder.encode(title(cityId), StandardCharsets.UTF_8));
+            case TITLES:
+                return get("/city/titles");
+            case UPLOAD:
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/city/" + cityId + "/uploadFile"))
+                        .timeout(Duration.ofSeconds(60))
+                        .header("Content-Type", "multipart/form-data; boundary=" + MULTIPART_BOUNDARY)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(uploadBody))
+                        .build();
+            default:
+                throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofSeconds(60)).GET().build();
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        return httpClient.send(request, bodyHandler);
+    }
+
+    private void report(double seconds, ImageStubServer stub) {
+        System.out.printf("%n%d clients, %d cities, %.1f s measured, stub latency %d+%d ms, stub failure rate %.3f%n%n",
+                options.getClients(), options.getCities(), seconds, options.getStubLatencyMillis(),
+                options.getStubJitterMillis(), options.getStubFailureRate());
+        System.out.printf("%-28s %9s %7s %9s %9s %9s %9s %9s  %s%n",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "statuses");
+        recorders.forEach((endpoint, recorder) -> {
+            LatencyRecorder.Summary summary = recorder.summarize(seconds);
+            System.out.printf("%-28s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f  %s%n",
+                    endpoint.getLabel(), summary.requests, summary.errors, summary.throughput, millis(summary.p50),
+                    millis(summary.p99), millis(summary.p999), millis(summary.max), summary.statuses);
+        });
+        System.out.printf("%nStub served %d images and failed %d requests%n", stub.getServed(), stub.getFailed());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static byte[] buildUploadBody(int imageBytes) {
+        byte[] image = new byte[imageBytes];
+        ThreadLocalRandom.current().nextBytes(image);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String header = "--" + MULTIPART_BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"image\"; filename=\"upload.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n";
+        body.writeBytes(header.getBytes(StandardCharsets.US_ASCII));
+        body.writeBytes(image);
+        body.writeBytes(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
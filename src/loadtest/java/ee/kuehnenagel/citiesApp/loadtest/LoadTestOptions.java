@@ -0,0 +1,104 @@
+package ee.kuehnenagel.citiesApp.loadtest;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options of a load test run, given as {@code --name=value} arguments. Arguments the load test does not know are
+ * passed on to the application, e.g. {@code --cities.images.async.threads=32}.
+ */
+@Getter
+public class LoadTestOptions {
+
+    private int cities = 10_000;
+
+    private int clients = 32;
+
+    private int warmupSeconds = 10;
+
+    private int durationSeconds = 60;
+
+    private long stubLatencyMillis = 100;
+
+    private long stubJitterMillis = 50;
+
+    private double stubFailureRate = 0.02;
+
+    private int stubImageBytes = 64 * 1024;
+
+    private int uploadImageBytes = 32 * 1024;
+
+    private final Map<Endpoint, Integer> weights = new EnumMap<>(Endpoint.class);
+
+    private final List<String> applicationArgs = new ArrayList<>();
+
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (Endpoint endpoint : Endpoint.values()) {
+            options.weights.put(endpoint, endpoint.getDefaultWeight());
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "cities":
+                    options.cities = Integer.parseInt(value);
+                    break;
+                case "clients":
+                    options.clients = Integer.parseInt(value);
+                    break;
+                case "warmup-seconds":
+                    options.warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "duration-seconds":
+                    options.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "stub-latency-ms":
+                    options.stubLatencyMillis = Long.parseLong(value);
+                    break;
+                case "stub-jitter-ms":
+                    options.stubJitterMillis = Long.parseLong(value);
+                    break;
+                case "stub-failure-rate":
+                    options.stubFailureRate = Double.parseDouble(value);
+                    break;
+                case "stub-image-bytes":
+                    options.stubImageBytes = Integer.parseInt(value);
+                    break;
+                case "upload-image-bytes":
+                    options.uploadImageBytes = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    options.parseMix(value);
+                    break;
+                default:
+                    options.applicationArgs.add(arg);
+            }
+        }
+        if (options.weights.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("At least one endpoint needs a positive weight");
+        }
+        return options;
+    }
+
+    /**
+     * Weights as {@code city=40,image=30,...}, endpoints left out keep their default weight.
+     */
+    private void parseMix(String mix) {
+        for (String entry : mix.split(",")) {
+            String[] weight = entry.split("=");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Expected endpoint=weight but got " + entry);
+            }
+            weights.put(Endpoint.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+        }
+    }
+}
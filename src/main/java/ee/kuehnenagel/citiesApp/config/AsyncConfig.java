@@ -0,0 +1,47 @@
+package ee.kuehnenagel.citiesApp.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class AsyncConfig {
+
+    public static final String CITY_IMAGE_EXECUTOR = "cityImageExecutor";
+
+    public static final String MVC_ASYNC_EXECUTOR = "mvcAsyncExecutor";
+
+    /**
+     * Runs image requests off the servlet threads, so slow image hosts cannot exhaust Tomcat.
+     * The queue is bounded and requests beyond it are rejected instead of piling up.
+     */
+    @Bean(name = CITY_IMAGE_EXECUTOR)
+    public ThreadPoolTaskExecutor cityImageExecutor(@Value("${cities.images.async.threads:16}") int threads,
+                                                    @Value("${cities.images.async.queue-size:200}") int queueSize) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueSize);
+        executor.setThreadNamePrefix("city-image-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        return executor;
+    }
+
+    /**
+     * Runs streamed responses such as the city export. Declaring an executor above switches off the one Spring Boot
+     * would give Spring MVC, which then falls back to a new thread per request. Exports are capped at
+     * cities.export.max-concurrent by the export service, so one thread per allowed export is enough.
+     */
+    @Bean(name = MVC_ASYNC_EXECUTOR)
+    public ThreadPoolTaskExecutor mvcAsyncExecutor(@Value("${cities.export.max-concurrent:4}") int maxConcurrentExports) {
+        int threads = Math.max(1, maxConcurrentExports);
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(threads);
+        executor.setThreadNamePrefix("mvc-async-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        return executor;
+    }
+}
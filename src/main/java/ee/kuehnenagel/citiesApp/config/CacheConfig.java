@@ -0,0 +1,33 @@
+package ee.kuehnenagel.citiesApp.config;
+
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.transaction.TransactionAwareCacheManagerProxy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableCaching
+public class CacheConfig {
+
+    /**
+     * Caffeine caches sized and expired by cities.cache.spec. Evictions issued inside a transaction are applied
+     * after it commits, so a concurrent reader cannot re-cache the old row in between. Cities are cached as
+     * snapshots, see {@link CitySnapshotCache}.
+     */
+    @Bean
+    public CacheManager cacheManager(@Value("${cities.cache.spec:maximumSize=10000,expireAfterWrite=10m,recordStats}") String cacheSpec) {
+        CaffeineCacheManager cacheManager = new CaffeineCacheManager(CityRepository.CITIES_CACHE) {
+            @Override
+            protected Cache adaptCaffeineCache(String name, com.github.benmanes.caffeine.cache.Cache<Object, Object> cache) {
+                return new CitySnapshotCache(super.adaptCaffeineCache(name, cache));
+            }
+        };
+        cacheManager.setCacheSpecification(cacheSpec);
+        return new TransactionAwareCacheManagerProxy(cacheManager);
+    }
+}
@@ -0,0 +1,91 @@
+package ee.kuehnenagel.citiesApp.config;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Cache decorator which stores and hands out copies of {@link City} entities.
+ * <p>
+ * A cached entity would otherwise be the instance a persistence context manages or a caller goes on to change, so
+ * readers could see half-applied changes and a rolled back write could stay cached. Every put stores a detached
+ * snapshot and every hit returns a fresh copy of it, so nothing that comes out of the cache can change what is in it.
+ * Other values are passed through unchanged.
+ */
+class CitySnapshotCache implements Cache {
+
+    private final Cache target;
+
+    CitySnapshotCache(Cache target) {
+        this.target = target;
+    }
+
+    @Override
+    public String getName() {
+        return target.getName();
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return target.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        ValueWrapper wrapper = target.get(key);
+        return wrapper == null ? null : new SimpleValueWrapper(copy(wrapper.get()));
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type) {
+        return type.cast(copy(target.get(key, type)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        return (T) copy(target.get(key, () -> (T) copy(valueLoader.call())));
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        target.put(key, copy(value));
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        ValueWrapper existing = target.putIfAbsent(key, copy(value));
+        return existing == null ? null : new SimpleValueWrapper(copy(existing.get()));
+    }
+
+    @Override
+    public void evict(Object key) {
+        target.evict(key);
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        return target.evictIfPresent(key);
+    }
+
+    @Override
+    public void clear() {
+        target.clear();
+    }
+
+    @Override
+    public boolean invalidate() {
+        return target.invalidate();
+    }
+
+    private static Object copy(Object value) {
+        if (!(value instanceof City)) {
+            return value;
+        }
+        City city = (City) value;
+        return new City(city.getId(), city.getTitle(), city.getImageLocation(), city.getStatus(), city.getImageHash(),
+                city.getImageUpdatedAt(), city.getSourceUrl(), city.getRowHash());
+    }
+}
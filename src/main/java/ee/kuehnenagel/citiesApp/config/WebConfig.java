@@ -0,0 +1,69 @@
+package ee.kuehnenagel.citiesApp.config;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.Callable;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    private final AsyncTaskExecutor mvcAsyncExecutor;
+
+    /**
+     * Request attribute holding the async timeout in milliseconds of a streamed response, replacing the global
+     * spring.mvc.async.request-timeout for that request only.
+     */
+    public static final String ASYNC_TIMEOUT_ATTRIBUTE = WebConfig.class.getName() + ".asyncTimeout";
+
+    /**
+     * Request attribute holding a {@link Runnable} run once the async processing of the request is over, whether the
+     * streamed response finished, failed, timed out, was rejected by the executor or the client went away.
+     */
+    public static final String ASYNC_COMPLETION_ATTRIBUTE = WebConfig.class.getName() + ".asyncCompletion";
+
+    public WebConfig(@Qualifier(AsyncConfig.MVC_ASYNC_EXECUTOR) AsyncTaskExecutor mvcAsyncExecutor) {
+        this.mvcAsyncExecutor = mvcAsyncExecutor;
+    }
+
+    /**
+     * Runs streamed responses on the bounded {@link AsyncConfig#mvcAsyncExecutor} and lets long running streams such
+     * as the city export outlive the short global async timeout that guards image requests. The timeout can only be
+     * changed before the async processing starts, which is when the interceptor runs.
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncExecutor);
+        configurer.registerCallableInterceptors(new AsyncAttributesInterceptor());
+    }
+
+    /**
+     * Applies {@link #ASYNC_TIMEOUT_ATTRIBUTE} before and runs {@link #ASYNC_COMPLETION_ATTRIBUTE} after the async
+     * processing of a request.
+     */
+    static class AsyncAttributesInterceptor implements CallableProcessingInterceptor {
+
+        @Override
+        public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+            Object timeout = request.getAttribute(ASYNC_TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (timeout instanceof Long && request instanceof AsyncWebRequest) {
+                ((AsyncWebRequest) request).setTimeout((Long) timeout);
+            }
+        }
+
+        @Override
+        public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+            Object onCompletion = request.getAttribute(ASYNC_COMPLETION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (onCompletion instanceof Runnable) {
+                ((Runnable) onCompletion).run();
+            }
+        }
+    }
+}
@@ -1,21 +1,52 @@
 package ee.kuehnenagel.citiesApp.controller;
 
+import ee.kuehnenagel.citiesApp.config.AsyncConfig;
+import ee.kuehnenagel.citiesApp.config.WebConfig;
 import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.CitySuggestion;
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.CityTitleView;
+import ee.kuehnenagel.citiesApp.model.CityTitlesPayload;
+import ee.kuehnenagel.citiesApp.model.CityUpdateResult;
+import ee.kuehnenagel.citiesApp.model.ImportJob;
+import ee.kuehnenagel.citiesApp.service.CityExportService;
+import ee.kuehnenagel.citiesApp.service.CityImageRenditions;
 import ee.kuehnenagel.citiesApp.service.CityService;
+import ee.kuehnenagel.citiesApp.service.ImagePrefetchService;
+import ee.kuehnenagel.citiesApp.service.ImportJobService;
+import ee.kuehnenagel.citiesApp.utils.ExportFormatEnum;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Slice;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RestController
 @RequestMapping()
@@ -25,9 +56,143 @@ public class CitiesController {
     @Autowired
     CityService cityService;
 
+    @Autowired
+    ImagePrefetchService imagePrefetchService;
+
+    @Autowired
+    ImportJobService importJobService;
+
+    @Autowired
+    CityExportService cityExportService;
+
+    @Autowired
+    CityImageRenditions cityImageRenditions;
+
+    @Autowired
+    @Qualifier(AsyncConfig.CITY_IMAGE_EXECUTOR)
+    Executor cityImageExecutor;
+
+    @Value("${cities.images.cache-max-age-seconds:3600}")
+    long imageCacheMaxAgeSeconds;
+
+    @Value("${cities.images.async.timeout-ms:40000}")
+    long imageRequestTimeoutMillis;
+
+    @Value("${cities.export.timeout-ms:3600000}")
+    long exportTimeoutMillis;
+
+    /**
+     * Imports the csv and waits for it, queued behind any running import.
+     *
+     * @return true when the csv had any rows
+     */
     @RequestMapping(value = "/init", method = RequestMethod.GET)
     public ResponseEntity<Boolean> initCitiesCsvDataToDb() {
-        return new ResponseEntity<>(cityService.initCitiesCsvDataToDb(), HttpStatus.OK);
+        return new ResponseEntity<>(importJobService.runImport().getRows() > 0, HttpStatus.OK);
+    }
+
+    /**
+     * Starts a csv import in the background, its progress is available under the returned job id.
+     */
+    @RequestMapping(value = "/import", method = RequestMethod.POST)
+    public ResponseEntity<ImportJob> submitImport() {
+        return new ResponseEntity<>(importJobService.submitImport(), HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = "/import", method = RequestMethod.GET)
+    public ResponseEntity<List<ImportJob>> getImportJobs() {
+        return new ResponseEntity<>(importJobService.getJobs(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/import/{jobId}", method = RequestMethod.GET)
+    public ResponseEntity<ImportJob> getImportJob(@PathVariable String jobId) {
+        ImportJob job = importJobService.getJob(jobId);
+        if (job == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job, HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/import/{jobId}", method = RequestMethod.DELETE)
+    public ResponseEntity<ImportJob> cancelImportJob(@PathVariable String jobId) {
+        ImportJob job = importJobService.cancelJob(jobId);
+        if (job == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job, HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Same as /init, answering with the counts of the import.
+     */
+    @RequestMapping(value = "/sync", method = RequestMethod.POST)
+    public ResponseEntity<CitySyncResult> syncCitiesFromCsv() {
+        return new ResponseEntity<>(importJobService.runImport(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/city/images/prefetch", method = RequestMethod.POST)
+    public ResponseEntity<Boolean> prefetchCityImages() {
+        return new ResponseEntity<>(imagePrefetchService.startPrefetch(), HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = "/city/images/gc", method = RequestMethod.POST)
+    public ResponseEntity<Integer> deleteUnreferencedImages() {
+        return new ResponseEntity<>(cityService.deleteUnreferencedImages(), HttpStatus.OK);
+    }
+
+    /**
+     * Streams all cities as newline delimited json or csv. Rows are written as they are read, the response is
+     * chunked and never held in memory. Beyond cities.export.max-concurrent running exports the answer is 503. The
+     * export slot is freed once, either when the body has been written or when the async processing ends without it.
+     */
+    @RequestMapping(value = "/city/export", method = RequestMethod.GET)
+    public ResponseEntity<StreamingResponseBody> exportCities(@RequestParam(value = "format", defaultValue = "ndjson") String format,
+                                                              WebRequest webRequest) {
+        ExportFormatEnum exportFormat = ExportFormatEnum.fromName(format);
+        if (exportFormat == null) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        if (!cityExportService.tryAcquireExport()) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable releaseExport = () -> {
+            if (released.compareAndSet(false, true)) {
+                cityExportService.releaseExport();
+            }
+        };
+        webRequest.setAttribute(WebConfig.ASYNC_TIMEOUT_ATTRIBUTE, exportTimeoutMillis, RequestAttributes.SCOPE_REQUEST);
+        webRequest.setAttribute(WebConfig.ASYNC_COMPLETION_ATTRIBUTE, releaseExport, RequestAttributes.SCOPE_REQUEST);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.getContentType() + ";charset=UTF-8"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename("cities." + exportFormat.getFileExtension()).build().toString())
+                .cacheControl(CacheControl.noStore())
+                .body(outputStream -> {
+                    try {
+                        cityExportService.exportCities(exportFormat, outputStream);
+                    } finally {
+                        releaseExport.run();
+                    }
+                });
+    }
+
+    @RequestMapping(value = "/city/batch", method = RequestMethod.GET)
+    public ResponseEntity<List<City>> findCitiesByIds(@RequestParam(value = "ids") List<Long> cityIds) {
+        try {
+            return new ResponseEntity<>(cityService.findCitiesByIds(cityIds), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @PutMapping("/city/batch")
+    public ResponseEntity<List<CityUpdateResult>> updateCities(@RequestBody List<City> cities) {
+        try {
+            return new ResponseEntity<>(cityService.updateCities(cities), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
     }
 
     @RequestMapping(value = "/city/{cityId}", method = RequestMethod.GET)
@@ -35,14 +200,71 @@ public class CitiesController {
         return new ResponseEntity<>(cityService.findCityById(cityId), HttpStatus.OK);
     }
 
+    /**
+     * Serves the image of the city, or a resized rendition of it when a width is given.
+     * The width is rounded to the rendition width before it goes into the ETag, so all widths served by the same
+     * rendition revalidate against the same tag.
+     * Downloading and resizing run on the image pool, the servlet thread is released right away.
+     */
     @RequestMapping(value = "/city/{cityId}/image", method = RequestMethod.GET)
-    public ResponseEntity<byte[]> getCityImageByCityId(@PathVariable(value = "cityId") Long cityId) {
-        return new ResponseEntity<>(cityService.getCityImageByCityId(cityId), HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<Resource>> getCityImageByCityId(@PathVariable(value = "cityId") Long cityId,
+                                                                            @RequestParam(value = "w", required = false) Integer width,
+                                                                            WebRequest webRequest) {
+        City city = cityService.findCityById(cityId);
+        if (city == null) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        }
+        Integer renditionWidth = width != null && width > 0 ? cityImageRenditions.getRenditionWidth(width) : null;
+        if (hasStoredImageMetadata(city)
+                && webRequest.checkNotModified(toETag(city, renditionWidth), city.getImageUpdatedAt().toEpochMilli())) {
+            // 304 with the validators is already prepared by the web request, the file is not touched
+            return CompletableFuture.completedFuture(null);
+        }
+
+        try {
+            return CompletableFuture.supplyAsync(() -> getCityImageResponse(city, renditionWidth), cityImageExecutor)
+                    .completeOnTimeout(new ResponseEntity<>(HttpStatus.GATEWAY_TIMEOUT),
+                            imageRequestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE));
+        }
     }
 
+    /**
+     * Serves the stored titles payload, gzip compressed when the client accepts it. The ETag changes with the titles,
+     * so a revalidating client gets 304 without the list being read or serialized.
+     */
     @RequestMapping(value = "/city/titles", method = RequestMethod.GET)
-    public ResponseEntity<List<String>> getCitiesTitlesList() {
-        return new ResponseEntity<>(cityService.getCitiesTitlesList(), HttpStatus.OK);
+    public ResponseEntity<byte[]> getCitiesTitlesList(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                              required = false) String acceptEncoding,
+                                                      WebRequest webRequest) {
+        CityTitlesPayload titles = cityService.getCitiesTitlesPayload();
+        boolean gzip = acceptsGzip(acceptEncoding);
+        String eTag = gzip ? titles.getGzipETag() : titles.getETag();
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .cacheControl(CacheControl.noCache())
+                .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                .eTag(eTag);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.body(gzip ? titles.getGzip() : titles.getJson());
+    }
+
+    @RequestMapping(value = "/city/page", method = RequestMethod.GET)
+    public ResponseEntity<Slice<CityTitleView>> getCitiesPage(@RequestParam(value = "page", defaultValue = "0") int page,
+                                                              @RequestParam(value = "size", defaultValue = "20") int size) {
+        return new ResponseEntity<>(cityService.getCitiesPage(page, size), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/city/scroll", method = RequestMethod.GET)
+    public ResponseEntity<List<CityTitleView>> getCitiesAfter(@RequestParam(value = "afterId", defaultValue = "0") Long afterId,
+                                                              @RequestParam(value = "size", defaultValue = "20") int size) {
+        return new ResponseEntity<>(cityService.getCitiesAfter(afterId, size), HttpStatus.OK);
     }
 
     @RequestMapping(value = "/city/search", method = RequestMethod.GET)
@@ -50,6 +272,19 @@ public class CitiesController {
         return new ResponseEntity<>(cityService.getCityBySearchText(searchText), HttpStatus.OK);
     }
 
+    @RequestMapping(value = "/city/search/list", method = RequestMethod.GET)
+    public ResponseEntity<List<City>> searchCities(@RequestParam(value = "searchText") String searchText,
+                                                   @RequestParam(value = "page", defaultValue = "0") int page,
+                                                   @RequestParam(value = "size", defaultValue = "20") int size) {
+        return new ResponseEntity<>(cityService.searchCities(searchText, page, size), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/city/typeahead", method = RequestMethod.GET)
+    public ResponseEntity<List<CitySuggestion>> suggestCities(@RequestParam(value = "searchText") String searchText,
+                                                              @RequestParam(value = "limit", defaultValue = "10") int limit) {
+        return new ResponseEntity<>(cityService.suggestCities(searchText, limit), HttpStatus.OK);
+    }
+
     @PutMapping("/city/update")
     public ResponseEntity<City> updateCity(@RequestBody City city) {
         return new ResponseEntity<>(cityService.updateCity(city), HttpStatus.OK);
@@ -60,4 +295,69 @@ public class CitiesController {
                                                    @RequestParam("image") MultipartFile multipartImage) {
         return new ResponseEntity<>(cityService.uploadCityImage(multipartImage, cityId), HttpStatus.OK);
     }
+
+    private ResponseEntity<Resource> getCityImageResponse(City city, Integer width) {
+        Integer renditionWidth = width;
+        Resource cityImage = width != null ? cityService.getCityImageRendition(city, width) : null;
+        if (cityImage == null) {
+            renditionWidth = null;
+            cityImage = cityService.getCityImage(city);
+        }
+        if (cityImage == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        // the body is streamed from the file and Range requests are answered with 206 partial content by Spring
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaTypeFactory.getMediaType(cityImage).orElse(MediaType.APPLICATION_OCTET_STREAM))
+                .cacheControl(CacheControl.maxAge(imageCacheMaxAgeSeconds, TimeUnit.SECONDS).cachePublic());
+        if (hasStoredImageMetadata(city)) {
+            response.eTag(toETag(city, renditionWidth)).lastModified(city.getImageUpdatedAt());
+        }
+        return response.body(cityImage);
+    }
+
+    /**
+     * An explicit gzip coding wins over the wildcard, a quality of 0 refuses the coding.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzipQuality = null;
+        Double wildcardQuality = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.trim().split(";");
+            String name = parameters[0].trim();
+            if (name.equalsIgnoreCase("gzip")) {
+                gzipQuality = getQuality(parameters);
+            } else if (name.equals("*")) {
+                wildcardQuality = getQuality(parameters);
+            }
+        }
+        Double quality = gzipQuality != null ? gzipQuality : wildcardQuality;
+        return quality != null && quality > 0;
+    }
+
+    private static double getQuality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static boolean hasStoredImageMetadata(City city) {
+        return city.getImageHash() != null && city.getImageUpdatedAt() != null;
+    }
+
+    private static String toETag(City city, Integer width) {
+        String renditionSuffix = width != null && width > 0 ? "-w" + width : "";
+        return "\"" + city.getImageHash() + renditionSuffix + "\"";
+    }
 }
@@ -12,6 +12,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import java.time.Instant;
 
 @Entity
 @NoArgsConstructor
@@ -35,4 +36,33 @@ public class City {
 
     @Column(name = "status")
     private String status;
+
+    /**
+     * Hex SHA-256 of the stored image, null until the image is downloaded or uploaded.
+     */
+    @Column(name = "image_hash", length = 64)
+    private String imageHash;
+
+    @Column(name = "image_updated_at")
+    private Instant imageUpdatedAt;
+
+    /**
+     * Image url from the csv, kept after the image is downloaded so a re-import can tell whether it changed.
+     */
+    @Column(name = "source_url", length = 1000)
+    private String sourceUrl;
+
+    /**
+     * Hex SHA-256 of the csv row this city was last imported from.
+     */
+    @Column(name = "row_hash", length = 64)
+    private String rowHash;
+
+    public City(Long id, String title, String imageLocation, String status) {
+        this(id, title, imageLocation, status, null, null);
+    }
+
+    public City(Long id, String title, String imageLocation, String status, String imageHash, Instant imageUpdatedAt) {
+        this(id, title, imageLocation, status, imageHash, imageUpdatedAt, null, null);
+    }
 }
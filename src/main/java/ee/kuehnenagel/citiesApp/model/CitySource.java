@@ -0,0 +1,18 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * What a city row was last imported from, used to diff the csv against the table.
+ */
+@Getter
+@AllArgsConstructor
+public class CitySource {
+
+    private final Long id;
+
+    private final String rowHash;
+
+    private final String sourceUrl;
+}
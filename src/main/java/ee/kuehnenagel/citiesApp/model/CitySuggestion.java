@@ -0,0 +1,15 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+@EqualsAndHashCode
+public class CitySuggestion {
+
+    private final Long id;
+
+    private final String title;
+}
@@ -0,0 +1,36 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Outcome of synchronising the cities table with the csv.
+ */
+@Getter
+@AllArgsConstructor
+public class CitySyncResult {
+
+    private final long rows;
+
+    private final long inserted;
+
+    /**
+     * Changed rows, including those whose image url changed.
+     */
+    private final long updated;
+
+    private final long imagesRequeued;
+
+    private final long deleted;
+
+    private final long unchanged;
+
+    private final long rejected;
+
+    /**
+     * The first rejected rows, the full count is in {@link #rejected}.
+     */
+    private final List<CsvRowError> errors;
+}
@@ -0,0 +1,13 @@
+package ee.kuehnenagel.citiesApp.model;
+
+/**
+ * Projection of a {@link City} for list pages, so only these columns are selected.
+ */
+public interface CityTitleView {
+
+    Long getId();
+
+    String getTitle();
+
+    String getStatus();
+}
@@ -0,0 +1,28 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The serialized list of all city titles, as JSON and gzip compressed JSON.
+ */
+@Getter
+@AllArgsConstructor
+public class CityTitlesPayload {
+
+    /**
+     * Version of the titles the payload was built from, changes whenever a city is written.
+     */
+    private final long version;
+
+    private final byte[] json;
+
+    private final byte[] gzip;
+
+    /**
+     * Hash of the JSON, so the tag stays the same across restarts as long as the titles do.
+     */
+    private final String eTag;
+
+    private final String gzipETag;
+}
@@ -0,0 +1,24 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import ee.kuehnenagel.citiesApp.utils.UpdateStatusEnum;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of one item of a bulk update.
+ */
+@Getter
+@AllArgsConstructor
+public class CityUpdateResult {
+
+    private final Long id;
+
+    private final UpdateStatusEnum status;
+
+    private final String message;
+
+    /**
+     * The updated city, null unless the status is {@link UpdateStatusEnum#UPDATED}.
+     */
+    private final City city;
+}
@@ -0,0 +1,16 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A csv row which was skipped by the import, and why.
+ */
+@Getter
+@AllArgsConstructor
+public class CsvRowError {
+
+    private final long line;
+
+    private final String message;
+}
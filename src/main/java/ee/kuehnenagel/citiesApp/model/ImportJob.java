@@ -0,0 +1,121 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import ee.kuehnenagel.citiesApp.utils.ImportStatusEnum;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A csv import submitted to run in the background, with its live progress.
+ */
+@Getter
+public class ImportJob implements ImportProgress {
+
+    private final String id;
+
+    private final Instant submittedAt;
+
+    private volatile ImportStatusEnum status = ImportStatusEnum.QUEUED;
+
+    private volatile Instant startedAt;
+
+    private volatile Instant finishedAt;
+
+    private volatile String error;
+
+    private volatile CitySyncResult result;
+
+    @JsonIgnore
+    private volatile boolean cancelRequested;
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder rowsParsed = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder rowsRejected = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder rowsWritten = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder imagesQueued = new LongAdder();
+
+    public ImportJob(String id) {
+        this.id = id;
+        this.submittedAt = Instant.now();
+    }
+
+    public long getRowsParsed() {
+        return rowsParsed.sum();
+    }
+
+    public long getRowsRejected() {
+        return rowsRejected.sum();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    public long getImagesQueued() {
+        return imagesQueued.sum();
+    }
+
+    public long getRowsPerSecond() {
+        if (startedAt == null) {
+            return 0;
+        }
+        long elapsedMillis = Duration.between(startedAt, finishedAt != null ? finishedAt : Instant.now()).toMillis();
+        return getRowsParsed() * 1000 / Math.max(elapsedMillis, 1);
+    }
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return finishedAt != null;
+    }
+
+    public void onRowParsed() {
+        rowsParsed.increment();
+    }
+
+    public void onRowRejected() {
+        rowsRejected.increment();
+    }
+
+    public void onRowsWritten(long rows, long imagesQueued) {
+        this.rowsWritten.add(rows);
+        this.imagesQueued.add(imagesQueued);
+    }
+
+    public void requestCancel() {
+        cancelRequested = true;
+    }
+
+    public void started() {
+        startedAt = Instant.now();
+        status = ImportStatusEnum.RUNNING;
+    }
+
+    public void completed(CitySyncResult result) {
+        this.result = result;
+        finish(ImportStatusEnum.COMPLETED);
+    }
+
+    public void failed(String message) {
+        this.error = message;
+        finish(ImportStatusEnum.FAILED);
+    }
+
+    public void cancelled() {
+        finish(ImportStatusEnum.CANCELLED);
+    }
+
+    private void finish(ImportStatusEnum finalStatus) {
+        finishedAt = Instant.now();
+        status = finalStatus;
+    }
+}
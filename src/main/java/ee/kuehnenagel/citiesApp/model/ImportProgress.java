@@ -0,0 +1,31 @@
+package ee.kuehnenagel.citiesApp.model;
+
+/**
+ * Receives the progress of a csv import and may ask it to stop.
+ */
+public interface ImportProgress {
+
+    ImportProgress NONE = new ImportProgress() {
+    };
+
+    default void onRowParsed() {
+    }
+
+    default void onRowRejected() {
+    }
+
+    /**
+     * @param rows         rows inserted, updated or deleted
+     * @param imagesQueued cities whose image now has to be downloaded
+     */
+    default void onRowsWritten(long rows, long imagesQueued) {
+    }
+
+    /**
+     * Polled between rows, the import rolls back and throws {@link java.util.concurrent.CancellationException}
+     * once it returns true.
+     */
+    default boolean isCancelRequested() {
+        return false;
+    }
+}
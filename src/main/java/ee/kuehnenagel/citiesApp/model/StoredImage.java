@@ -0,0 +1,21 @@
+package ee.kuehnenagel.citiesApp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Image written to the file storage together with the hex SHA-256 of its content.
+ */
+@Getter
+@AllArgsConstructor
+public class StoredImage {
+
+    private final Path path;
+
+    private final String hash;
+
+    private final Instant storedAt;
+}
@@ -0,0 +1,168 @@
+package ee.kuehnenagel.citiesApp.repo;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.CitySource;
+import ee.kuehnenagel.citiesApp.utils.StatusEnum;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plain JDBC batch writes for the cities table.
+ * <p>
+ * {@link City} ids come from the csv and the entity uses IDENTITY generation, so Hibernate would
+ * issue a select plus a single insert per row and never batch them. Bulk paths go through here instead.
+ */
+@Repository
+public class CityBatchRepository {
+
+    private static final String INSERT_CITY_SQL =
+            "INSERT INTO cities (id, title, image_location, status, source_url, row_hash) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_CITY_TITLE_SQL =
+            "UPDATE cities SET title = ?, source_url = ?, row_hash = ? WHERE id = ?";
+
+    private static final String UPDATE_CITY_SOURCE_SQL =
+            "UPDATE cities SET title = ?, image_location = ?, status = ?, image_hash = NULL, image_updated_at = NULL, "
+                    + "source_url = ?, row_hash = ? WHERE id = ?";
+
+    private static final String DELETE_CITY_SQL = "DELETE FROM cities WHERE id = ?";
+
+    private static final String SELECT_CITY_SOURCES_SQL = "SELECT id, row_hash, source_url FROM cities WHERE id IN (%s)";
+
+    private static final String SELECT_CITY_IDS_AFTER_SQL = "SELECT id FROM cities WHERE id > ? ORDER BY id LIMIT ?";
+
+    private static final String UPDATE_DOWNLOADED_IMAGE_SQL =
+            "UPDATE cities SET image_location = ?, status = ?, image_hash = ?, image_updated_at = ? "
+                    + "WHERE id = ? AND status = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final CacheManager cacheManager;
+
+    public CityBatchRepository(JdbcTemplate jdbcTemplate, CacheManager cacheManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * @return import state of those of the given ids which exist, by id
+     */
+    public Map<Long, CitySource> findCitySources(Collection<Long> ids) {
+        Map<Long, CitySource> sourcesById = new HashMap<>();
+        if (ids.isEmpty()) {
+            return sourcesById;
+        }
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        jdbcTemplate.query(String.format(SELECT_CITY_SOURCES_SQL, placeholders), rs -> {
+            CitySource source = new CitySource(rs.getLong(1), rs.getString(2), rs.getString(3));
+            sourcesById.put(source.getId(), source);
+        }, ids.toArray());
+        return sourcesById;
+    }
+
+    /**
+     * Keyset page over all city ids, used to find cities which are gone from the csv.
+     */
+    public List<Long> findCityIdsAfter(long afterId, int limit) {
+        return jdbcTemplate.queryForList(SELECT_CITY_IDS_AFTER_SQL, Long.class, afterId, limit);
+    }
+
+    /**
+     * Inserts all given cities with one JDBC batch.
+     */
+    public void insertCities(List<City> cities) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_CITY_SQL, cities, cities.size(), (ps, city) -> {
+            ps.setLong(1, city.getId());
+            ps.setString(2, city.getTitle());
+            ps.setString(3, city.getImageLocation());
+            ps.setString(4, city.getStatus());
+            ps.setString(5, city.getSourceUrl());
+            ps.setString(6, city.getRowHash());
+        });
+        evictFromCache(cities);
+    }
+
+    /**
+     * Updates titles and import state of the given cities with one JDBC batch, their images are left untouched.
+     */
+    public void updateCityTitles(List<City> cities) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPDATE_CITY_TITLE_SQL, cities, cities.size(), (ps, city) -> {
+            ps.setString(1, city.getTitle());
+            ps.setString(2, city.getSourceUrl());
+            ps.setString(3, city.getRowHash());
+            ps.setLong(4, city.getId());
+        });
+        evictFromCache(cities);
+    }
+
+    /**
+     * Points the given cities at their new image urls with one JDBC batch. Their stored images are dropped, so the
+     * cities are {@link StatusEnum#FROM_CSV} again and their images are downloaded anew.
+     */
+    public void updateCitySources(List<City> cities) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPDATE_CITY_SOURCE_SQL, cities, cities.size(), (ps, city) -> {
+            ps.setString(1, city.getTitle());
+            ps.setString(2, city.getImageLocation());
+            ps.setString(3, StatusEnum.FROM_CSV.name());
+            ps.setString(4, city.getSourceUrl());
+            ps.setString(5, city.getRowHash());
+            ps.setLong(6, city.getId());
+        });
+        evictFromCache(cities);
+    }
+
+    public void deleteCities(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(DELETE_CITY_SQL, ids, ids.size(), (ps, id) -> ps.setLong(1, id));
+        Cache cache = cacheManager.getCache(CityRepository.CITIES_CACHE);
+        if (cache != null) {
+            ids.forEach(cache::evict);
+        }
+    }
+
+    /**
+     * Points the given {@link StatusEnum#FROM_CSV} cities at their downloaded images with one JDBC batch.
+     * Rows that were downloaded in the meantime are left untouched.
+     */
+    public void updateDownloadedImageLocations(List<City> cities) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPDATE_DOWNLOADED_IMAGE_SQL, cities, cities.size(), (ps, city) -> {
+            ps.setString(1, city.getImageLocation());
+            ps.setString(2, StatusEnum.DOWNLOADED.name());
+            ps.setString(3, city.getImageHash());
+            ps.setTimestamp(4, city.getImageUpdatedAt() != null ? Timestamp.from(city.getImageUpdatedAt()) : null);
+            ps.setLong(5, city.getId());
+            ps.setString(6, StatusEnum.FROM_CSV.name());
+        });
+        evictFromCache(cities);
+    }
+
+    private void evictFromCache(List<City> cities) {
+        Cache cache = cacheManager.getCache(CityRepository.CITIES_CACHE);
+        if (cache != null) {
+            cities.forEach(city -> cache.evict(city.getId()));
+        }
+    }
+}
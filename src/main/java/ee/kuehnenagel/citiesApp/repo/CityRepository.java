@@ -1,18 +1,84 @@
 package ee.kuehnenagel.citiesApp.repo;
 
 import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.CityTitleView;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.Query;
-import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 @Repository
-public interface CityRepository extends CrudRepository<City, Long> {
+public interface CityRepository extends PagingAndSortingRepository<City, Long> {
+
+    /**
+     * Read-through cache of cities by id. Every write path evicts the written ids.
+     */
+    String CITIES_CACHE = "cities";
+
+    @Override
+    @Cacheable(value = CITIES_CACHE, key = "#p0", unless = "#result == null")
+    Optional<City> findById(Long id);
+
+    @Override
+    @CacheEvict(value = CITIES_CACHE, key = "#p0.id", condition = "#p0.id != null")
+    <S extends City> S save(S entity);
+
+    @Override
+    @CacheEvict(value = CITIES_CACHE, allEntries = true)
+    <S extends City> Iterable<S> saveAll(Iterable<S> entities);
+
+    @Override
+    @CacheEvict(value = CITIES_CACHE, key = "#p0")
+    void deleteById(Long id);
+
+    @Override
+    @CacheEvict(value = CITIES_CACHE, key = "#p0.id")
+    void delete(City entity);
+
+    @Override
+    @CacheEvict(value = CITIES_CACHE, allEntries = true)
+    void deleteAll();
+
     @Query("SELECT c FROM City c where " +
             "(:searchText is not null and lower(c.title) like lower(concat('%', :searchText,'%')))  " +
             "order by c.id asc")
     List<City> findByTitle(@Param("searchText") String searchText);
 
+    Optional<City> findFirstByTitleIgnoreCaseOrderByIdAsc(String title);
+
+    List<City> findByTitleContainingIgnoreCaseOrderByIdAsc(String searchText, Pageable pageable);
+
+    List<City> findByStatusAndIdGreaterThanOrderByIdAsc(String status, Long id, Pageable pageable);
+
+    @Query("SELECT c.imageLocation FROM City c where c.status = :status")
+    List<String> findImageLocationsByStatus(@Param("status") String status);
+
+    @Query("SELECT c.title FROM City c order by c.id asc")
+    List<String> findAllTitles();
+
+    /**
+     * Cursor over all cities for exports. Must be consumed and closed inside a transaction, rows are fetched in
+     * batches of the fetch size and loaded read-only, so Hibernate keeps no snapshots of them.
+     */
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query("SELECT c FROM City c order by c.id asc")
+    Stream<City> streamAllByOrderByIdAsc();
+
+    Slice<CityTitleView> findAllProjectedBy(Pageable pageable);
+
+    List<CityTitleView> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
 }
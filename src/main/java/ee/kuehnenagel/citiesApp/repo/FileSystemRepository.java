@@ -1,38 +1,135 @@
 package ee.kuehnenagel.citiesApp.repo;
 
 import ee.kuehnenagel.citiesApp.CitiesAppApplication;
-import org.apache.commons.validator.routines.UrlValidator;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.utils.HashUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.stereotype.Repository;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URI;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Date;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Content-addressed image store.
+ * <p>
+ * An image is stored once per content under {@code <images dir>/ab/cd/<sha256><ext>}, where ab and cd are the first
+ * two byte pairs of its hash, so directories stay small and identical images share one file. Files are written to
+ * a temporary file first and moved into place atomically, so readers never see a partial image. Storing content
+ * which already exists refreshes the modification time of the file, which the garbage collection grace period is
+ * measured from.
+ */
 @Repository
 public class FileSystemRepository {
 
     private static final String separator = FileSystems.getDefault().getSeparator();
     private static final URL RESOURCES_DIR = CitiesAppApplication.class.getResource(separator);
-    public Path saveCityImage(byte[] content, String cityName, String imageFormat) throws IOException, URISyntaxException {
-        if (RESOURCES_DIR != null) {
-            URI uri = RESOURCES_DIR.toURI();
-            String mainPath = Paths.get(uri) + separator + "downloadedImages" + separator;
-            Path newFile = Paths.get(mainPath + new Date().getTime() + "-" + cityName + imageFormat);
-            Files.createDirectories(newFile.getParent());
+    private static final String IMAGES_DIR_NAME = "downloadedImages";
+    private static final String TEMP_DIR_NAME = ".tmp";
+    private static final String RENDITION_SEPARATOR = "-w";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
-            Files.write(newFile, content);
+    private final Path imagesDir;
 
-            return newFile;
+    private final Path tempDir;
+
+    private final long maxImageBytes;
+
+    public FileSystemRepository(@Value("${cities.images.dir:}") String imagesDir,
+                                @Value("${cities.images.max-bytes:10485760}") long maxImageBytes) {
+        this.imagesDir = (imagesDir.isBlank() ? getDefaultImagesDir() : Paths.get(imagesDir)).toAbsolutePath();
+        this.tempDir = this.imagesDir.resolve(TEMP_DIR_NAME);
+        this.maxImageBytes = maxImageBytes;
+    }
+
+    /**
+     * Renditions are stored next to their original as {@code <sha256>-w<width><ext>}.
+     */
+    public Path getRenditionPath(String hash, int width, String imageFormat) {
+        return getImagePath(hash, imageFormat).resolveSibling(hash + RENDITION_SEPARATOR + width + imageFormat);
+    }
+
+    public void saveRendition(Path renditionFile, byte[] content) throws IOException {
+        writeAtomically(renditionFile, content);
+    }
+
+    /**
+     * Streams the image into the store without buffering it in memory. The hash is computed and the size limit is
+     * checked while the bytes are copied to a temporary file, which is then moved to its content address.
+     *
+     * @return the stored image or null when the content is empty, nothing is stored then
+     * @throws IOException when reading or writing fails or the image exceeds the size limit
+     */
+    public StoredImage saveCityImage(InputStream content, String imageFormat) throws IOException {
+        Files.createDirectories(tempDir);
+        Path tempFile = Files.createTempFile(tempDir, "upload", imageFormat);
+        try {
+            MessageDigest digest = HashUtils.newSha256Digest();
+            try (InputStream is = new DigestInputStream(content, digest);
+                 OutputStream os = Files.newOutputStream(tempFile)) {
+                if (copyWithLimit(is, os) == 0) {
+                    return null;
+                }
+            }
+            String hash = HashUtils.toHex(digest.digest());
+            Path imageFile = getImagePath(hash, imageFormat);
+            if (!touch(imageFile)) {
+                moveIntoPlace(tempFile, imageFile);
+            }
+            return new StoredImage(imageFile, hash, Instant.now());
+        } finally {
+            Files.deleteIfExists(tempFile);
         }
-        return null;
+    }
+
+    /**
+     * Deletes stored images which are not referenced by any city, together with their renditions.
+     * Files younger than the grace period are kept, since their city may not be updated yet.
+     *
+     * @return number of deleted files
+     */
+    public int deleteUnreferencedImages(Set<String> referencedLocations, Duration gracePeriod) throws IOException {
+        if (!Files.isDirectory(imagesDir)) {
+            return 0;
+        }
+        Set<Path> referencedPaths = referencedLocations.stream()
+                .map(location -> Paths.get(location).toAbsolutePath().normalize())
+                .collect(Collectors.toSet());
+        Instant deleteBefore = Instant.now().minus(gracePeriod);
+
+        List<Path> unreferencedFiles;
+        try (Stream<Path> files = Files.walk(imagesDir)) {
+            unreferencedFiles = files
+                    .filter(Files::isRegularFile)
+                    .filter(file -> !referencedPaths.contains(getOriginalPath(file.normalize())))
+                    .collect(Collectors.toList());
+        }
+        int deleted = 0;
+        for (Path file : unreferencedFiles) {
+            if (Files.getLastModifiedTime(file).toInstant().isBefore(deleteBefore) && Files.deleteIfExists(file)) {
+                deleted++;
+            }
+        }
+        return deleted;
     }
 
     public FileSystemResource findInFileSystem(String location) {
@@ -43,8 +140,80 @@ public class FileSystemRepository {
         }
     }
 
-    public boolean isValidURL(String url) throws MalformedURLException {
-        UrlValidator validator = new UrlValidator();
-        return validator.isValid(url);
+    private Path getImagePath(String hash, String imageFormat) {
+        return imagesDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + imageFormat);
+    }
+
+    private static Path getOriginalPath(Path file) {
+        String fileName = file.getFileName().toString();
+        int renditionStart = fileName.indexOf(RENDITION_SEPARATOR);
+        if (renditionStart < 0) {
+            return file;
+        }
+        return file.resolveSibling(fileName.substring(0, renditionStart) + fileName.substring(fileName.lastIndexOf('.')));
+    }
+
+    /**
+     * Marks an image which is already stored as written now, so the garbage collection grace period starts over for
+     * the city about to reference it.
+     *
+     * @return false when the image does not exist, e.g. because a garbage collection just deleted it
+     */
+    private static boolean touch(Path imageFile) throws IOException {
+        try {
+            Files.setLastModifiedTime(imageFile, FileTime.from(Instant.now()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private void writeAtomically(Path file, byte[] content) throws IOException {
+        Files.createDirectories(tempDir);
+        Path tempFile = Files.createTempFile(tempDir, "image", ".tmp");
+        try {
+            Files.write(tempFile, content);
+            moveIntoPlace(tempFile, file);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private long copyWithLimit(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long copied = 0;
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            copied += n;
+            if (copied > maxImageBytes) {
+                throw new IOException("Image is larger than " + maxImageBytes + " bytes");
+            }
+            os.write(buffer, 0, n);
+        }
+        return copied;
+    }
+
+    private void moveIntoPlace(Path tempFile, Path imageFile) throws IOException {
+        Files.createDirectories(imageFile.getParent());
+        try {
+            Files.move(tempFile, imageFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, imageFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Images used to live next to the compiled classes, which only works when running from a directory.
+     * Inside a packaged jar they go to the working directory instead.
+     */
+    private static Path getDefaultImagesDir() {
+        if (RESOURCES_DIR != null && "file".equals(RESOURCES_DIR.getProtocol())) {
+            try {
+                return Paths.get(RESOURCES_DIR.toURI()).resolve(IMAGES_DIR_NAME);
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Paths.get(IMAGES_DIR_NAME);
     }
 }
@@ -0,0 +1,30 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.utils.ExportFormatEnum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface CityExportService {
+
+    /**
+     * Streams every city, ordered by id, to the output as rows are read from the database. Memory use does not
+     * depend on the number of cities. The output is flushed but not closed.
+     *
+     * @return number of exported cities
+     */
+    long exportCities(ExportFormatEnum format, OutputStream outputStream) throws IOException;
+
+    /**
+     * Takes one of the cities.export.max-concurrent export slots, each export holds a database connection and a
+     * worker thread for as long as it streams.
+     *
+     * @return false when all slots are taken and the export should be refused
+     */
+    boolean tryAcquireExport();
+
+    /**
+     * Frees a slot taken with {@link #tryAcquireExport()}.
+     */
+    void releaseExport();
+}
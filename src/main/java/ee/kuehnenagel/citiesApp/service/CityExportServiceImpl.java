@@ -0,0 +1,151 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import ee.kuehnenagel.citiesApp.utils.CsvWriter;
+import ee.kuehnenagel.citiesApp.utils.ExportFormatEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Streams the city table in one read-only transaction. Rows are fetched from a server side cursor in batches of the
+ * repository fetch size, written as they arrive and detached right after, so neither the persistence context nor
+ * the response buffer grows with the table.
+ * <p>
+ * The csv export uses the configured import columns first, so an export can be imported again.
+ */
+@Slf4j
+@Service
+public class CityExportServiceImpl implements CityExportService {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final CityRepository cityRepository;
+
+    private final EntityManager entityManager;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final ObjectWriter cityWriter;
+
+    private final char csvDelimiter;
+
+    private final String[] csvHeader;
+
+    private final Semaphore exportSlots;
+
+    public CityExportServiceImpl(CityRepository cityRepository, EntityManager entityManager,
+                                 PlatformTransactionManager transactionManager, ObjectMapper objectMapper,
+                                 @Value("${cities.import.csv.delimiter:,}") char csvDelimiter,
+                                 @Value("${cities.import.csv.id-column:id}") String csvIdColumn,
+                                 @Value("${cities.import.csv.title-column:name}") String csvTitleColumn,
+                                 @Value("${cities.import.csv.image-column:photo}") String csvImageColumn,
+                                 @Value("${cities.export.max-concurrent:4}") int maxConcurrentExports) {
+        this.cityRepository = cityRepository;
+        this.entityManager = entityManager;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.cityWriter = objectMapper.writerFor(City.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.csvDelimiter = csvDelimiter;
+        this.csvHeader = new String[]{csvIdColumn, csvTitleColumn, csvImageColumn, "status", "image_location",
+                "image_hash", "image_updated_at"};
+        this.exportSlots = new Semaphore(Math.max(1, maxConcurrentExports));
+    }
+
+    public long exportCities(ExportFormatEnum format, OutputStream outputStream) throws IOException {
+        long startedAt = System.nanoTime();
+        Long exported;
+        try {
+            exported = readOnlyTransaction.execute(status -> {
+                try (Stream<City> cities = cityRepository.streamAllByOrderByIdAsc()) {
+                    return format == ExportFormatEnum.CSV
+                            ? writeCsv(cities.iterator(), outputStream)
+                            : writeNdjson(cities.iterator(), outputStream);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            // usually the client went away, the transaction and cursor are closed already
+            throw e.getCause();
+        }
+        long count = exported == null ? 0 : exported;
+        log.info("Exported {} cities as {} in {} ms", count, format, (System.nanoTime() - startedAt) / 1_000_000);
+        return count;
+    }
+
+    public boolean tryAcquireExport() {
+        return exportSlots.tryAcquire();
+    }
+
+    public void releaseExport() {
+        exportSlots.release();
+    }
+
+    private long writeNdjson(Iterator<City> cities, OutputStream outputStream) throws IOException {
+        long count = 0;
+        Writer writer = newWriter(outputStream);
+        try (JsonGenerator generator = cityWriter.createGenerator(writer)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // values are separated by the line breaks alone, not by the default space between root values
+            generator.setRootValueSeparator(null);
+            while (cities.hasNext()) {
+                City city = cities.next();
+                cityWriter.writeValue(generator, city);
+                generator.writeRaw('\n');
+                entityManager.detach(city);
+                count++;
+            }
+        }
+        writer.flush();
+        return count;
+    }
+
+    private long writeCsv(Iterator<City> cities, OutputStream outputStream) throws IOException {
+        long count = 0;
+        Writer writer = newWriter(outputStream);
+        CsvWriter csvWriter = new CsvWriter(writer, csvDelimiter);
+        csvWriter.writeRecord(csvHeader);
+        while (cities.hasNext()) {
+            City city = cities.next();
+            csvWriter.writeRecord(toCsvFields(city));
+            entityManager.detach(city);
+            count++;
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * The image column holds the source url when the image was downloaded, otherwise the csv value as it was kept.
+     */
+    private static String[] toCsvFields(City city) {
+        String image = city.getSourceUrl() != null ? city.getSourceUrl() : city.getImageLocation();
+        return new String[]{String.valueOf(city.getId()), city.getTitle(), image, city.getStatus(),
+                city.getImageLocation(), city.getImageHash(),
+                city.getImageUpdatedAt() == null ? null : city.getImageUpdatedAt().toString()};
+    }
+
+    private static Writer newWriter(OutputStream outputStream) {
+        return new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+    }
+}
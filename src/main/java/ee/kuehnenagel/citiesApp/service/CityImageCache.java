@@ -0,0 +1,110 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import ee.kuehnenagel.citiesApp.model.City;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Byte-budgeted in-memory cache of stored city images, keyed by city id.
+ * <p>
+ * Entries are weighted by their size and evicted by Caffeine's W-TinyLFU policy once the budget is used up, so the
+ * hot cities stay in memory. Images larger than the per-entry limit are never cached and keep streaming from disk.
+ * An entry is only served while the city still points at the location it was loaded from. Hits, misses, evictions
+ * and the evicted bytes are published as the {@code cache.*} meters tagged {@code cache=cityImages}.
+ */
+@Component
+public class CityImageCache {
+
+    static final String CACHE_NAME = "cityImages";
+
+    private final Cache<Long, CachedImage> cache;
+
+    private final long maxEntryBytes;
+
+    public CityImageCache(@Value("${cities.images.cache.max-bytes:67108864}") long maxBytes,
+                          @Value("${cities.images.cache.max-entry-bytes:1048576}") long maxEntryBytes,
+                          MeterRegistry meterRegistry) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Long cityId, CachedImage image) -> image.getByteArray().length)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * @return the cached image of the city or null on a miss
+     */
+    public Resource get(City city) {
+        CachedImage cachedImage = cache.getIfPresent(city.getId());
+        if (cachedImage == null) {
+            return null;
+        }
+        if (!cachedImage.location.equals(city.getImageLocation())) {
+            cache.invalidate(city.getId());
+            return null;
+        }
+        return cachedImage;
+    }
+
+    /**
+     * Reads the image into the cache when it fits the per-entry limit.
+     *
+     * @return the cached copy of the image or null when it is not cached
+     */
+    public Resource put(City city, Resource image) throws IOException {
+        if (image.contentLength() > maxEntryBytes) {
+            return null;
+        }
+        byte[] content;
+        try (InputStream is = image.getInputStream()) {
+            content = StreamUtils.copyToByteArray(is);
+        }
+        CachedImage cachedImage = new CachedImage(content, city.getImageLocation(), image.getFilename(), image.lastModified());
+        cache.put(city.getId(), cachedImage);
+        return cachedImage;
+    }
+
+    public void invalidate(Long cityId) {
+        if (cityId != null) {
+            cache.invalidate(cityId);
+        }
+    }
+
+    private static final class CachedImage extends ByteArrayResource {
+
+        private final String location;
+
+        private final String filename;
+
+        private final long lastModified;
+
+        private CachedImage(byte[] content, String location, String filename, long lastModified) {
+            super(content);
+            this.location = location;
+            this.filename = filename;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+}
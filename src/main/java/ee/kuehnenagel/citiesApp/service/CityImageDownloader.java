@@ -0,0 +1,105 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Downloads the remote image of a {@link City} and stores it in the file storage.
+ * <p>
+ * Downloads are single-flight per city id: concurrent callers for the same city wait for the running download and
+ * share its result. A successful result stays visible to late callers until {@link #releaseDownload(Long)} is called
+ * once the new image location is persisted, so nobody re-downloads an image whose status update is still in flight.
+ * <p>
+ * Callers wait for a running download at most the wait timeout. The first caller to give up fails the shared
+ * download for everyone waiting on it and forgets it, so a stalled host cannot pile up waiting threads.
+ */
+@Component
+public class CityImageDownloader {
+
+    private final CityImageFetcher cityImageFetcher;
+
+    private final long waitTimeoutMillis;
+
+    private final ConcurrentMap<Long, CompletableFuture<StoredImage>> downloadsByCityId = new ConcurrentHashMap<>();
+
+    public CityImageDownloader(CityImageFetcher cityImageFetcher,
+                               @Value("${cities.images.download-wait-timeout-ms:30000}") long waitTimeoutMillis) {
+        this.cityImageFetcher = cityImageFetcher;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * Downloads the image the city points to and saves it to the file storage, or joins the download of the same
+     * city which is already running.
+     *
+     * @return the stored image or null when the location is not a valid url or the image is empty
+     * @throws IOException when the download or the write fails, or the running download is not done in time
+     */
+    public StoredImage downloadToFileStorage(City city) throws IOException {
+        Long cityId = city.getId();
+        CompletableFuture<StoredImage> download = new CompletableFuture<>();
+        CompletableFuture<StoredImage> runningDownload = downloadsByCityId.putIfAbsent(cityId, download);
+        if (runningDownload != null) {
+            return awaitDownload(cityId, runningDownload);
+        }
+
+        try {
+            StoredImage storedImage = cityImageFetcher.fetchToFileStorage(city.getImageLocation());
+            download.complete(storedImage);
+            if (storedImage == null) {
+                downloadsByCityId.remove(cityId, download);
+            }
+            return storedImage;
+        } catch (IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            downloadsByCityId.remove(cityId, download);
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets the finished download of the city, so the next call downloads again.
+     * Must be called once the downloaded image location is stored on the city.
+     */
+    public void releaseDownload(Long cityId) {
+        CompletableFuture<StoredImage> download = downloadsByCityId.get(cityId);
+        if (download != null && download.isDone()) {
+            downloadsByCityId.remove(cityId, download);
+        }
+    }
+
+    private StoredImage awaitDownload(Long cityId, CompletableFuture<StoredImage> download) throws IOException {
+        try {
+            return download.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            IOException timeout = new IOException("Image download of city " + cityId + " did not finish within "
+                    + waitTimeoutMillis + " ms");
+            download.completeExceptionally(timeout);
+            downloadsByCityId.remove(cityId, download);
+            throw timeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the image download of city " + cityId);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import ee.kuehnenagel.citiesApp.utils.ImageUtils;
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import org.apache.commons.validator.routines.UrlValidator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches remote images into the file storage with one shared {@link HttpClient}.
+ * <p>
+ * The client keeps connections alive between fetches and multiplexes requests to the same host over HTTP/2 where
+ * the server supports it. Bodies are streamed into the store, so the size limit holds without buffering the image.
+ * The read timeout applies to the response headers and to every read of the body, a server which stalls in the
+ * middle of the body fails the fetch instead of holding the download thread.
+ * <p>
+ * Unless local urls are allowed, hosts resolving to a loopback, private, link-local or otherwise internal address are
+ * refused. Redirects are followed here rather than by the client, so every hop goes through the same check.
+ * Validators of fetched urls are remembered, and fetching an unchanged url again only costs a 304 response.
+ * Every request is timed by its outcome in {@link CityMetrics}.
+ */
+@Component
+public class CityImageFetcher {
+
+    private static final String[] URL_SCHEMES = {"http", "https"};
+
+    private static final int MAX_REDIRECTS = 5;
+
+    private final FileSystemRepository fileSystemRepository;
+
+    private final HttpClient httpClient;
+
+    private final UrlValidator urlValidator;
+
+    private final boolean allowLocalUrls;
+
+    private final Duration readTimeout;
+
+    private final long maxImageBytes;
+
+    private final String userAgent;
+
+    private final Cache<String, FetchedImage> fetchedImagesByUrl;
+
+    private final CityMetrics cityMetrics;
+
+    private final ScheduledThreadPoolExecutor readWatchdog;
+
+    public CityImageFetcher(FileSystemRepository fileSystemRepository, CityMetrics cityMetrics,
+                            @Value("${cities.images.connect-timeout-ms:5000}") long connectTimeoutMillis,
+                            @Value("${cities.images.read-timeout-ms:30000}") long readTimeoutMillis,
+                            @Value("${cities.images.max-bytes:10485760}") long maxImageBytes,
+                            @Value("${cities.images.allow-local-urls:false}") boolean allowLocalUrls,
+                            @Value("${cities.images.user-agent:citiesApp/0.0.1}") String userAgent,
+                            @Value("${cities.images.validators-cache-size:10000}") long validatorsCacheSize) {
+        this.fileSystemRepository = fileSystemRepository;
+        this.cityMetrics = cityMetrics;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .build();
+        this.urlValidator = new UrlValidator(URL_SCHEMES, allowLocalUrls ? UrlValidator.ALLOW_LOCAL_URLS : 0L);
+        this.allowLocalUrls = allowLocalUrls;
+        this.readTimeout = Duration.ofMillis(readTimeoutMillis);
+        this.maxImageBytes = maxImageBytes;
+        this.userAgent = userAgent;
+        this.fetchedImagesByUrl = Caffeine.newBuilder().maximumSize(validatorsCacheSize).build();
+        this.readWatchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "image-read-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.readWatchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Fetches the image at the url into the file storage. When the url was fetched before and its stored image is
+     * still there, the request is conditional and a 304 answer reuses the stored image.
+     *
+     * @return the stored image or null when the url is not valid, points at a local host or the image is empty
+     * @throws IOException when the request fails or times out, the server answers with an error or the image is
+     *                     too large
+     */
+    public StoredImage fetchToFileStorage(String url) throws IOException {
+        if (url == null || !urlValidator.isValid(url) || !isPermittedHost(URI.create(url))) {
+            return null;
+        }
+        FetchedImage previousFetch = fetchedImagesByUrl.getIfPresent(url);
+        if (previousFetch != null && !Files.isReadable(previousFetch.storedImage.getPath())) {
+            previousFetch = null;
+        }
+
+        Timer.Sample download = cityMetrics.startDownload();
+        String outcome = CityMetrics.OUTCOME_FAILURE;
+        long downloadedBytes = 0;
+        try {
+            HttpResponse<InputStream> response = sendFollowingRedirects(URI.create(url), previousFetch);
+            try (InputStream body = response.body()) {
+                int status = response.statusCode();
+                if (status == 304 && previousFetch != null) {
+                    outcome = CityMetrics.OUTCOME_NOT_MODIFIED;
+                    return previousFetch.storedImage;
+                }
+                if (status != 200) {
+                    throw new IOException("Unexpected status " + status + " from " + url);
+                }
+                HttpHeaders headers = toHttpHeaders(response);
+                OptionalLong contentLength = response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH);
+                if (contentLength.isPresent() && contentLength.getAsLong() > maxImageBytes) {
+                    throw new IOException("Image is larger than " + maxImageBytes + " bytes: " + url);
+                }
+                if (contentLength.isPresent() && contentLength.getAsLong() == 0) {
+                    outcome = CityMetrics.OUTCOME_SKIPPED;
+                    return null;
+                }
+
+                StoredImage storedImage = fileSystemRepository.saveCityImage(
+                        decode(new ReadTimeoutInputStream(body, url), headers), ImageUtils.getImageFormat(url));
+                if (storedImage == null) {
+                    outcome = CityMetrics.OUTCOME_SKIPPED;
+                    return null;
+                }
+                downloadedBytes = Files.size(storedImage.getPath());
+                if (headers.getETag() != null || headers.getFirst(HttpHeaders.LAST_MODIFIED) != null) {
+                    fetchedImagesByUrl.put(url, new FetchedImage(headers.getETag(),
+                            headers.getFirst(HttpHeaders.LAST_MODIFIED), storedImage));
+                }
+                outcome = CityMetrics.OUTCOME_SUCCESS;
+                return storedImage;
+            }
+        } finally {
+            cityMetrics.stopDownload(download, outcome, downloadedBytes);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        readWatchdog.shutdownNow();
+    }
+
+    /**
+     * An address is public unless it is a wildcard, loopback, link-local, site-local, multicast, IPv6 unique local
+     * (fc00::/7) or carrier-grade NAT (100.64.0.0/10) address.
+     */
+    static boolean isPublicAddress(InetAddress address) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+                || address.isSiteLocalAddress() || address.isMulticastAddress()) {
+            return false;
+        }
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 16) {
+            return (bytes[0] & 0xFE) != 0xFC;
+        }
+        return (bytes[0] & 0xFF) != 100 || (bytes[1] & 0xC0) != 64;
+    }
+
+    /**
+     * @throws java.net.UnknownHostException when the host does not resolve
+     */
+    private boolean isPermittedHost(URI uri) throws IOException {
+        if (allowLocalUrls) {
+            return true;
+        }
+        for (InetAddress address : InetAddress.getAllByName(uri.getHost())) {
+            if (!isPublicAddress(address)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private HttpResponse<InputStream> sendFollowingRedirects(URI uri, FetchedImage previousFetch) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            HttpResponse<InputStream> response = send(buildRequest(uri, previousFetch));
+            if (!isRedirect(response.statusCode())) {
+                return response;
+            }
+            response.body().close();
+            URI redirectedFrom = uri;
+            String location = response.headers().firstValue(HttpHeaders.LOCATION)
+                    .orElseThrow(() -> new IOException("Redirect without location from " + redirectedFrom));
+            if (redirects == MAX_REDIRECTS) {
+                throw new IOException("More than " + MAX_REDIRECTS + " redirects from " + uri);
+            }
+            URI target = uri.resolve(location);
+            if (!urlValidator.isValid(target.toString()) || !isPermittedHost(target)) {
+                throw new IOException("Refused redirect from " + uri + " to " + target);
+            }
+            uri = target;
+        }
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+    }
+
+    private HttpRequest buildRequest(URI uri, FetchedImage previousFetch) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(readTimeout)
+                .header(HttpHeaders.USER_AGENT, userAgent)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .GET();
+        if (previousFetch != null) {
+            if (previousFetch.eTag != null) {
+                request.header(HttpHeaders.IF_NONE_MATCH, previousFetch.eTag);
+            }
+            if (previousFetch.lastModified != null) {
+                request.header(HttpHeaders.IF_MODIFIED_SINCE, previousFetch.lastModified);
+            }
+        }
+        return request.build();
+    }
+
+    private HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+        try {
+            return httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + request.uri());
+        }
+    }
+
+    private static InputStream decode(InputStream body, HttpHeaders headers) throws IOException {
+        if ("gzip".equalsIgnoreCase(headers.getFirst(HttpHeaders.CONTENT_ENCODING))) {
+            return new GZIPInputStream(body);
+        }
+        return body;
+    }
+
+    private static HttpHeaders toHttpHeaders(HttpResponse<?> response) {
+        HttpHeaders headers = new HttpHeaders();
+        response.headers().map().forEach(headers::addAll);
+        return headers;
+    }
+
+    /**
+     * Closes the body when a single read blocks for longer than the read timeout. Closing the body stream of the
+     * {@link HttpClient} releases the blocked read, which is then reported as a timeout.
+     */
+    private class ReadTimeoutInputStream extends FilterInputStream {
+
+        private final String url;
+
+        private volatile boolean timedOut;
+
+        ReadTimeoutInputStream(InputStream body, String url) {
+            super(body);
+            this.url = url;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ScheduledFuture<?> watchdog = startWatchdog();
+            try {
+                int b = super.read();
+                checkTimeout(null);
+                return b;
+            } catch (IOException e) {
+                checkTimeout(e);
+                throw e;
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            ScheduledFuture<?> watchdog = startWatchdog();
+            try {
+                int n = super.read(buffer, offset, length);
+                checkTimeout(null);
+                return n;
+            } catch (IOException e) {
+                checkTimeout(e);
+                throw e;
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+
+        private ScheduledFuture<?> startWatchdog() {
+            return readWatchdog.schedule(this::timeOut, readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        private void timeOut() {
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the read fails with the timeout either way
+            }
+        }
+
+        private void checkTimeout(IOException cause) throws SocketTimeoutException {
+            if (timedOut) {
+                SocketTimeoutException e = new SocketTimeoutException("Read of " + url + " timed out after "
+                        + readTimeout.toMillis() + " ms");
+                e.initCause(cause);
+                throw e;
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    private static class FetchedImage {
+
+        private final String eTag;
+
+        private final String lastModified;
+
+        private final StoredImage storedImage;
+    }
+}
@@ -0,0 +1,226 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import ee.kuehnenagel.citiesApp.utils.ImageUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resized variants of stored city images.
+ * <p>
+ * Requested widths are rounded up to one of the configured widths, so only a handful of renditions exist per image.
+ * A rendition is generated once on a bounded worker pool and stored next to its original, concurrent requests for
+ * the same rendition share one generation. When the pool is busy or the image cannot be decoded, callers get null
+ * and serve the original instead.
+ */
+@Slf4j
+@Component
+public class CityImageRenditions {
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final FileSystemRepository fileSystemRepository;
+
+    private final NavigableSet<Integer> widths;
+
+    private final long timeoutMillis;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<Path, CompletableFuture<Path>> renditionsInProgress = new ConcurrentHashMap<>();
+
+    public CityImageRenditions(FileSystemRepository fileSystemRepository,
+                               @Value("${cities.images.renditions.widths:64,128,256,512,1024}") Integer[] widths,
+                               @Value("${cities.images.renditions.threads:2}") int threads,
+                               @Value("${cities.images.renditions.queue-size:100}") int queueSize,
+                               @Value("${cities.images.renditions.timeout-ms:5000}") long timeoutMillis) {
+        this.fileSystemRepository = fileSystemRepository;
+        this.widths = new TreeSet<>(Arrays.asList(widths));
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "image-rendition-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @return the smallest configured width not smaller than the requested one, or the largest configured width
+     */
+    public int getRenditionWidth(int requestedWidth) {
+        Integer width = widths.ceiling(requestedWidth);
+        return width != null ? width : widths.last();
+    }
+
+    /**
+     * Finds or generates the rendition of the stored image of the city.
+     *
+     * @return the rendition or null when it is not available in time and the original should be served
+     */
+    public Resource getRendition(City city, int requestedWidth) {
+        if (city.getImageHash() == null || getFormatName(city.getImageLocation()) == null) {
+            return null;
+        }
+        int width = getRenditionWidth(requestedWidth);
+        Path original = Paths.get(city.getImageLocation());
+        Path rendition = fileSystemRepository.getRenditionPath(city.getImageHash(), width,
+                ImageUtils.getImageFormat(city.getImageLocation()));
+        if (Files.isReadable(rendition)) {
+            return new FileSystemResource(rendition);
+        }
+
+        CompletableFuture<Path> generation = new CompletableFuture<>();
+        CompletableFuture<Path> runningGeneration = renditionsInProgress.putIfAbsent(rendition, generation);
+        if (runningGeneration == null) {
+            try {
+                executor.execute(() -> generate(original, rendition, width, generation));
+            } catch (RejectedExecutionException e) {
+                renditionsInProgress.remove(rendition, generation);
+                log.debug("Rendition queue is full, serving original of city {}", city.getId());
+                return null;
+            }
+            runningGeneration = generation;
+        }
+        return awaitRendition(runningGeneration);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Resource awaitRendition(CompletableFuture<Path> generation) {
+        try {
+            Path rendition = generation.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return rendition != null ? new FileSystemResource(rendition) : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    private void generate(Path original, Path rendition, int width, CompletableFuture<Path> generation) {
+        try {
+            byte[] content = resize(original, width, getFormatName(original.toString()));
+            if (content == null) {
+                generation.complete(null);
+                return;
+            }
+            fileSystemRepository.saveRendition(rendition, content);
+            generation.complete(rendition);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not create {} px rendition of {}", width, original, e);
+            generation.completeExceptionally(e);
+        } finally {
+            renditionsInProgress.remove(rendition, generation);
+        }
+    }
+
+    /**
+     * Images which are not wider than the rendition are stored re-encoded at their own size,
+     * so the next request finds the rendition file instead of decoding the original again.
+     */
+    private static byte[] resize(Path original, int width, String formatName) throws IOException {
+        BufferedImage source = ImageIO.read(original.toFile());
+        if (source == null) {
+            return null;
+        }
+        int targetWidth = Math.min(width, source.getWidth());
+        int targetHeight = Math.max(1, Math.round((float) source.getHeight() * targetWidth / source.getWidth()));
+        boolean jpeg = "jpg".equals(formatName);
+        BufferedImage target = new BufferedImage(targetWidth, targetHeight,
+                jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return jpeg ? writeJpeg(target) : write(target, formatName);
+    }
+
+    private static byte[] write(BufferedImage image, String formatName) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, formatName, baos)) {
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] writeJpeg(BufferedImage image) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+
+    private static String getFormatName(String location) {
+        if (location == null || location.lastIndexOf('.') < 0) {
+            return null;
+        }
+        switch (ImageUtils.getImageFormat(location).toLowerCase()) {
+            case ".jpg":
+            case ".jpeg":
+                return "jpg";
+            case ".png":
+                return "png";
+            case ".gif":
+                return "gif";
+            case ".bmp":
+                return "bmp";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Meters of the import and image hot paths, published through the actuator metrics and prometheus endpoints.
+ * <p>
+ * Timers publish p50 and p99 and a percentile histogram, so latencies can be aggregated across instances.
+ * Repository calls such as the title search are timed by Spring Data as {@code spring.data.repository.invocations}.
+ */
+@Component
+public class CityMetrics {
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+    public static final String OUTCOME_CANCELLED = "cancelled";
+    public static final String OUTCOME_NOT_MODIFIED = "not_modified";
+    public static final String OUTCOME_SKIPPED = "skipped";
+
+    public static final String SOURCE_MEMORY = "memory";
+    public static final String SOURCE_DISK = "disk";
+
+    static final String IMPORTS = "cities.imports";
+    static final String IMPORTED_ROWS = "cities.import.rows";
+    static final String IMPORT_ROWS_PER_SECOND = "cities.import.rows.per.second";
+    static final String IMPORTS_IN_FLIGHT = "cities.imports.in.flight";
+    static final String IMAGE_DOWNLOADS = "cities.image.downloads";
+    static final String IMAGE_DOWNLOAD_BYTES = "cities.image.download.bytes";
+    static final String IMAGE_DOWNLOADS_IN_FLIGHT = "cities.image.downloads.in.flight";
+    static final String IMAGE_LOOKUPS = "cities.image.lookups";
+    static final String IMAGE_SERVED_BYTES = "cities.image.served.bytes";
+
+    private static final String OUTCOME = "outcome";
+    private static final String SOURCE = "source";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Counter importedRows;
+
+    private final AtomicLong lastImportRowsPerSecond = new AtomicLong();
+
+    private final AtomicInteger importsInFlight = new AtomicInteger();
+
+    private final DistributionSummary downloadedBytes;
+
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+
+    public CityMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.importedRows = Counter.builder(IMPORTED_ROWS)
+                .description("Csv rows read by imports")
+                .register(meterRegistry);
+        this.downloadedBytes = DistributionSummary.builder(IMAGE_DOWNLOAD_BYTES)
+                .description("Size of downloaded images")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder(IMPORT_ROWS_PER_SECOND, lastImportRowsPerSecond, AtomicLong::get)
+                .description("Throughput of the last finished import")
+                .register(meterRegistry);
+        Gauge.builder(IMPORTS_IN_FLIGHT, importsInFlight, AtomicInteger::get)
+                .description("Running csv imports")
+                .register(meterRegistry);
+        Gauge.builder(IMAGE_DOWNLOADS_IN_FLIGHT, downloadsInFlight, AtomicInteger::get)
+                .description("Running image downloads")
+                .register(meterRegistry);
+    }
+
+    public Timer.Sample startImport() {
+        importsInFlight.incrementAndGet();
+        return Timer.start(meterRegistry);
+    }
+
+    public void stopImport(Timer.Sample sample, String outcome, long rows) {
+        importsInFlight.decrementAndGet();
+        long nanos = sample.stop(timer(IMPORTS, "Csv imports", OUTCOME, outcome));
+        importedRows.increment(rows);
+        if (OUTCOME_SUCCESS.equals(outcome) && nanos > 0) {
+            lastImportRowsPerSecond.set(rows * 1_000_000_000L / nanos);
+        }
+    }
+
+    public Timer.Sample startDownload() {
+        downloadsInFlight.incrementAndGet();
+        return Timer.start(meterRegistry);
+    }
+
+    /**
+     * @param bytes size of the downloaded image, 0 when nothing was downloaded
+     */
+    public void stopDownload(Timer.Sample sample, String outcome, long bytes) {
+        downloadsInFlight.decrementAndGet();
+        sample.stop(timer(IMAGE_DOWNLOADS, "Image downloads", OUTCOME, outcome));
+        if (bytes > 0) {
+            downloadedBytes.record(bytes);
+        }
+    }
+
+    /**
+     * Times resolving a stored image and checking that it is readable, the bytes are streamed later by the response.
+     */
+    public Timer.Sample startImageLookup() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void stopImageLookup(Timer.Sample sample, String outcome) {
+        sample.stop(timer(IMAGE_LOOKUPS, "Stored image lookups on disk", OUTCOME, outcome));
+    }
+
+    public void imageServed(String source, long bytes) {
+        Counter.builder(IMAGE_SERVED_BYTES)
+                .description("Bytes of served images")
+                .baseUnit("bytes")
+                .tag(SOURCE, source)
+                .register(meterRegistry)
+                .increment(bytes);
+    }
+
+    private Timer timer(String name, String description, String tagKey, String tagValue) {
+        return Timer.builder(name)
+                .description(description)
+                .tag(tagKey, tagValue)
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
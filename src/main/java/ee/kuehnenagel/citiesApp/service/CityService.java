@@ -1,25 +1,126 @@
 package ee.kuehnenagel.citiesApp.service;
 
 import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.CitySuggestion;
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.CityTitleView;
+import ee.kuehnenagel.citiesApp.model.CityTitlesPayload;
+import ee.kuehnenagel.citiesApp.model.CityUpdateResult;
+import ee.kuehnenagel.citiesApp.model.ImportProgress;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Slice;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.util.List;
 
 public interface CityService {
 
+    /**
+     * Runs {@link #syncCitiesFromCsv()}.
+     *
+     * @return true when the csv had any rows
+     */
     Boolean initCitiesCsvDataToDb();
 
+    /**
+     * Brings the cities table in line with the csv. Only new, changed and removed rows are written, and only
+     * cities whose image url changed have their images downloaded again.
+     * <p>
+     * The csv is streamed and each chunk of the import batch size is written with one JDBC batch per kind of change,
+     * but the whole sync is a single transaction: other readers see the new rows only once it commits, and a failure
+     * rolls every chunk back. Undo log and locks of that transaction grow with the number of written rows.
+     * A csv which cannot be read or parsed to the end is such a failure, nothing of it is committed.
+     * <p>
+     * Two syncs must not run at the same time, callers go through {@link ImportJobService}, which runs them one by one.
+     *
+     * @throws java.io.UncheckedIOException when the csv cannot be read
+     * @throws IllegalArgumentException when the csv header lacks a configured column
+     */
+    CitySyncResult syncCitiesFromCsv();
+
+    /**
+     * Same as {@link #syncCitiesFromCsv()}, reporting progress as it goes. A cancelled sync is rolled back.
+     *
+     * @throws java.util.concurrent.CancellationException when the progress asks the sync to stop
+     */
+    CitySyncResult syncCitiesFromCsv(ImportProgress progress);
+
     City updateCity(City city);
 
     City findCityById(Long cityId);
 
+    /**
+     * Updates many cities in one transaction and reports the outcome of every item in request order.
+     *
+     * @throws IllegalArgumentException when more than 500 cities are given
+     */
+    List<CityUpdateResult> updateCities(List<City> cities);
+
+    /**
+     * Returns the cities with the given ids in request order, unknown ids are left out.
+     *
+     * @throws IllegalArgumentException when more than 500 ids are given
+     */
+    List<City> findCitiesByIds(List<Long> cityIds);
+
     List<String> getCitiesTitlesList();
 
+    /**
+     * Returns the serialized titles list, rebuilt only after cities were written.
+     */
+    CityTitlesPayload getCitiesTitlesPayload();
+
+    /**
+     * Returns one page of cities ordered by id, without counting the whole table.
+     */
+    Slice<CityTitleView> getCitiesPage(int page, int size);
+
+    /**
+     * Returns up to size cities with an id greater than afterId, ordered by id.
+     * The id of the last returned city is the cursor of the next page.
+     */
+    List<CityTitleView> getCitiesAfter(Long afterId, int size);
+
+    /**
+     * Returns the city whose title equals the search text ignoring case, otherwise the only city whose title
+     * contains it, otherwise null.
+     */
     City getCityBySearchText(String searchText);
 
-    byte[] getCityImageByCityId(Long cityId);
+    /**
+     * Returns one page of cities whose title contains the search text, loaded with a single query.
+     * Only the first 10,000 results can be paged through, later pages are empty.
+     */
+    List<City> searchCities(String searchText, int page, int size);
+
+    /**
+     * Returns at most limit cities whose title matches the search text, best match first.
+     */
+    List<CitySuggestion> suggestCities(String searchText, int limit);
+
+    Resource getCityImageByCityId(Long cityId);
+
+    /**
+     * Returns the stored image of the city, downloading it first when the city still points at a remote url.
+     * Stored image metadata of the given city is updated in place.
+     */
+    Resource getCityImage(City city);
+
+    /**
+     * Returns the stored image of the city resized to the given width, rounded up to one of the supported widths.
+     *
+     * @return the rendition or null when the original image should be served, e.g. when it cannot be resized in time
+     */
+    Resource getCityImageRendition(City city, int width);
 
     boolean uploadCityImage(MultipartFile imageFile, Long cityId);
 
+    /**
+     * Deletes stored images no city points at any more.
+     *
+     * @return number of deleted files
+     */
+    int deleteUnreferencedImages();
+
 
 }
@@ -1,70 +1,247 @@
 package ee.kuehnenagel.citiesApp.service;
 
 import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.CitySource;
+import ee.kuehnenagel.citiesApp.model.CitySuggestion;
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.CityTitleView;
+import ee.kuehnenagel.citiesApp.model.CityTitlesPayload;
+import ee.kuehnenagel.citiesApp.model.CityUpdateResult;
+import ee.kuehnenagel.citiesApp.model.CsvRowError;
+import ee.kuehnenagel.citiesApp.model.ImportProgress;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.CityBatchRepository;
 import ee.kuehnenagel.citiesApp.repo.CityRepository;
 import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import ee.kuehnenagel.citiesApp.utils.CsvParser;
+import ee.kuehnenagel.citiesApp.utils.CsvRecord;
+import ee.kuehnenagel.citiesApp.utils.HashUtils;
+import ee.kuehnenagel.citiesApp.utils.ImageUtils;
 import ee.kuehnenagel.citiesApp.utils.StatusEnum;
+import ee.kuehnenagel.citiesApp.utils.UpdateStatusEnum;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.transaction.Transactional;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Image methods run outside of a transaction, so a slow download or file write does not hold a database connection.
+ * Their status updates are committed by the repository in a short transaction of their own.
+ */
+@Slf4j
 @Service
 @Transactional
 public class CityServiceImpl implements CityService {
 
-    private static final String COMMA_DELIMITER = ",";
-
     private static final String CSV_DATA_DIR = "src/main/resources/cities.csv";
 
+    private static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
+
+    private static final int MAX_REPORTED_CSV_ERRORS = 100;
+
+    private static final int MAX_PAGE_SIZE = 500;
+
+    private static final int MAX_SEARCH_RESULTS = 10_000;
+
+    private static final int MAX_BULK_SIZE = 500;
+
     private final CityRepository cityRepository;
 
+    private final CityBatchRepository cityBatchRepository;
+
     private final FileSystemRepository fileSystemRepository;
 
-    public CityServiceImpl(CityRepository cityRepository, FileSystemRepository fileSystemRepository) {
+    private final CityImageDownloader cityImageDownloader;
+
+    private final CityImageCache cityImageCache;
+
+    private final CityTitleIndex cityTitleIndex;
+
+    private final CityImageRenditions cityImageRenditions;
+
+    private final CityMetrics cityMetrics;
+
+    private final CityTitlesCache cityTitlesCache;
+
+    @Value("${cities.import.batch-size:" + DEFAULT_IMPORT_BATCH_SIZE + "}")
+    private int importBatchSize = DEFAULT_IMPORT_BATCH_SIZE;
+
+    @Value("${cities.import.csv.path:" + CSV_DATA_DIR + "}")
+    private String csvPath = CSV_DATA_DIR;
+
+    @Value("${cities.import.csv.delimiter:,}")
+    private char csvDelimiter = ',';
+
+    @Value("${cities.import.csv.id-column:id}")
+    private String csvIdColumn = "id";
+
+    @Value("${cities.import.csv.title-column:name}")
+    private String csvTitleColumn = "name";
+
+    @Value("${cities.import.csv.image-column:photo}")
+    private String csvImageColumn = "photo";
+
+    @Value("${cities.import.csv.parallelism:4}")
+    private int csvParallelism = 4;
+
+    @Value("${cities.import.csv.chunk-bytes:8388608}")
+    private long csvChunkBytes = 8 * 1024 * 1024;
+
+    @Value("${cities.images.gc-grace-period:PT1H}")
+    private Duration imageGcGracePeriod = Duration.ofHours(1);
+
+    public CityServiceImpl(CityRepository cityRepository, CityBatchRepository cityBatchRepository,
+                           FileSystemRepository fileSystemRepository, CityImageDownloader cityImageDownloader,
+                           CityImageCache cityImageCache, CityTitleIndex cityTitleIndex,
+                           CityImageRenditions cityImageRenditions, CityMetrics cityMetrics,
+                           CityTitlesCache cityTitlesCache) {
         this.cityRepository = cityRepository;
+        this.cityBatchRepository = cityBatchRepository;
         this.fileSystemRepository = fileSystemRepository;
+        this.cityImageDownloader = cityImageDownloader;
+        this.cityImageCache = cityImageCache;
+        this.cityTitleIndex = cityTitleIndex;
+        this.cityImageRenditions = cityImageRenditions;
+        this.cityMetrics = cityMetrics;
+        this.cityTitlesCache = cityTitlesCache;
     }
 
     public Boolean initCitiesCsvDataToDb() {
-        List<City> citiesList = getCitiesDataFromCsv();
-        for (City city : citiesList) {
-            saveCityObject(city);
+        return syncCitiesFromCsv().getRows() > 0;
+    }
+
+    public CitySyncResult syncCitiesFromCsv() {
+        return syncCitiesFromCsv(ImportProgress.NONE);
+    }
+
+    public CitySyncResult syncCitiesFromCsv(ImportProgress progress) {
+        int batchSize = Math.max(1, importBatchSize);
+        long startedAt = System.nanoTime();
+        CsvSync sync = new CsvSync(progress);
+        Timer.Sample importSample = cityMetrics.startImport();
+        String outcome = CityMetrics.OUTCOME_FAILURE;
+        try {
+            syncCsvRows(sync, batchSize);
+            // a rejected row with an unreadable id may be a city which is still in the csv
+            if (sync.rows > 0 && !sync.rejectedUnknownId) {
+                deleteCitiesMissingFromCsv(sync, batchSize);
+            }
+            CitySyncResult result = sync.toResult();
+            logImportThroughput(result, System.nanoTime() - startedAt);
+            outcome = CityMetrics.OUTCOME_SUCCESS;
+            return result;
+        } catch (CancellationException e) {
+            outcome = CityMetrics.OUTCOME_CANCELLED;
+            throw e;
+        } finally {
+            cityMetrics.stopImport(importSample, outcome, sync.rows);
         }
-        return !citiesList.isEmpty();
     }
 
     public void saveCityObject(City city) {
-        if (city == null) {
-            throw new IllegalArgumentException("City is null");
-        } else if (city.getTitle().isBlank() || city.getStatus().isBlank() || city.getImageLocation().isBlank()) {
-            throw new IllegalArgumentException("City data is empty");
-        }
+        validateCity(city);
         cityRepository.save(city);
+        cityTitleIndex.put(city.getId(), city.getTitle());
+        cityTitlesCache.invalidate();
     }
 
     public City updateCity(City city) {
-        if (city == null) {
-            throw new IllegalArgumentException("City is null");
-        } else if (city.getTitle().isBlank() || city.getStatus().isBlank() || city.getImageLocation().isBlank()) {
-            throw new IllegalArgumentException("City data is empty");
+        validateCity(city);
+        ignoreClientManagedFields(city);
+        City updatedCity = saveCity(city);
+        cityTitleIndex.put(city.getId(), city.getTitle());
+        cityTitlesCache.invalidate();
+        return updatedCity;
+    }
+
+    /**
+     * Applies all updates in one transaction. Cities are loaded with one IN query and the changes are flushed as
+     * JDBC batches on commit, invalid items and unknown ids are reported and skipped. The title index and the caches
+     * follow once the transaction commits, so a rolled back batch leaves them untouched.
+     */
+    public List<CityUpdateResult> updateCities(List<City> cities) {
+        checkBulkSize(cities.size());
+        List<Long> cityIds = cities.stream()
+                .filter(Objects::nonNull)
+                .map(City::getId)
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toList());
+        Map<Long, City> storedCitiesById = new HashMap<>();
+        cityRepository.findAllById(cityIds).forEach(city -> storedCitiesById.put(city.getId(), city));
+
+        List<CityUpdateResult> results = new ArrayList<>(cities.size());
+        List<City> updatedCities = new ArrayList<>();
+        for (City city : cities) {
+            Long cityId = city != null ? city.getId() : null;
+            City storedCity = storedCitiesById.get(cityId);
+            if (cityId == null) {
+                results.add(new CityUpdateResult(null, UpdateStatusEnum.INVALID, "City id is missing", null));
+            } else if (!isValidCity(city)) {
+                results.add(new CityUpdateResult(cityId, UpdateStatusEnum.INVALID, "City data is empty", null));
+            } else if (storedCity == null) {
+                results.add(new CityUpdateResult(cityId, UpdateStatusEnum.NOT_FOUND, "City not found", null));
+            } else {
+                applyUpdate(storedCity, city);
+                City updatedCity = cityRepository.save(storedCity);
+                updatedCities.add(updatedCity);
+                results.add(new CityUpdateResult(cityId, UpdateStatusEnum.UPDATED, null, updatedCity));
+            }
         }
-        return cityRepository.save(city);
+        Map<Long, String> updatedTitles = new HashMap<>();
+        updatedCities.forEach(city -> updatedTitles.put(city.getId(), city.getTitle()));
+        runAfterCommit(() -> {
+            updatedTitles.forEach((cityId, title) -> {
+                cityImageCache.invalidate(cityId);
+                cityTitleIndex.put(cityId, title);
+            });
+            cityTitlesCache.invalidate();
+        });
+        return results;
+    }
+
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public List<City> findCitiesByIds(List<Long> cityIds) {
+        checkBulkSize(cityIds.size());
+        Map<Long, City> citiesById = new HashMap<>();
+        cityRepository.findAllById(new HashSet<>(cityIds)).forEach(city -> citiesById.put(city.getId(), city));
+        return cityIds.stream()
+                .map(citiesById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
+    @Transactional(Transactional.TxType.SUPPORTS)
     public City findCityById(Long cityId) {
         Optional<City> cityById = cityRepository.findById(cityId);
         if (cityById != null && cityById.isPresent()) {
@@ -75,39 +252,87 @@ public class CityServiceImpl implements CityService {
     }
 
     public List<String> getCitiesTitlesList() {
-        List<String> citiesTitles = new ArrayList<>();
-        Iterable<City> all = cityRepository.findAll();
-        all.forEach(city -> citiesTitles.add(city.getTitle()));
-        return citiesTitles;
+        return cityRepository.findAllTitles();
+    }
+
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public CityTitlesPayload getCitiesTitlesPayload() {
+        return cityTitlesCache.get();
+    }
+
+    public Slice<CityTitleView> getCitiesPage(int page, int size) {
+        return cityRepository.findAllProjectedBy(PageRequest.of(Math.max(page, 0), getPageSize(size), Sort.by("id")));
+    }
+
+    public List<CityTitleView> getCitiesAfter(Long afterId, int size) {
+        long cursor = afterId != null ? afterId : 0L;
+        return cityRepository.findByIdGreaterThanOrderByIdAsc(cursor, PageRequest.of(0, getPageSize(size)));
     }
 
     public City getCityBySearchText(String searchText) {
-        List<City> citiesBySearchText = cityRepository.findByTitle(searchText);
-        if (!citiesBySearchText.isEmpty()) {
-            if (citiesBySearchText.size() == 1) {
-                return findCityById(citiesBySearchText.get(0).getId());
-            } else {
-                return null;
+        if (cityTitleIndex.isReady()) {
+            List<CitySuggestion> suggestions = cityTitleIndex.search(searchText, 2);
+            if (suggestions.size() == 1 || (!suggestions.isEmpty() && isExactMatch(suggestions.get(0), searchText))) {
+                return findCityById(suggestions.get(0).getId());
             }
+            return null;
+        }
+        Optional<City> exactMatch = cityRepository.findFirstByTitleIgnoreCaseOrderByIdAsc(searchText);
+        if (exactMatch != null && exactMatch.isPresent()) {
+            return exactMatch.get();
+        }
+        List<City> citiesBySearchText = cityRepository.findByTitle(searchText);
+        if (citiesBySearchText.size() == 1) {
+            return citiesBySearchText.get(0);
         } else {
             return null;
         }
     }
 
-    public byte[] getCityImageByCityId(Long cityId) {
+    public List<City> searchCities(String searchText, int page, int size) {
+        int pageSize = getPageSize(size);
+        int pageNumber = Math.max(page, 0);
+        // pages past the cap are empty, so clients paging until an empty page stop
+        if ((long) pageNumber * pageSize >= MAX_SEARCH_RESULTS) {
+            return new ArrayList<>();
+        }
+        if (!cityTitleIndex.isReady()) {
+            return cityRepository.findByTitleContainingIgnoreCaseOrderByIdAsc(searchText, PageRequest.of(pageNumber, pageSize));
+        }
+
+        int offset = pageNumber * pageSize;
+        List<CitySuggestion> suggestions = cityTitleIndex.search(searchText, offset + pageSize);
+        if (suggestions.size() <= offset) {
+            return new ArrayList<>();
+        }
+        List<Long> cityIds = suggestions.subList(offset, suggestions.size()).stream()
+                .map(CitySuggestion::getId)
+                .collect(Collectors.toList());
+        Map<Long, City> citiesById = new HashMap<>();
+        cityRepository.findAllById(cityIds).forEach(city -> citiesById.put(city.getId(), city));
+        return cityIds.stream()
+                .map(citiesById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    public List<CitySuggestion> suggestCities(String searchText, int limit) {
+        int suggestionsLimit = getPageSize(limit);
+        if (cityTitleIndex.isReady()) {
+            return cityTitleIndex.search(searchText, suggestionsLimit);
+        }
+        return cityRepository.findByTitle(searchText).stream()
+                .limit(suggestionsLimit)
+                .map(city -> new CitySuggestion(city.getId(), city.getTitle()))
+                .collect(Collectors.toList());
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public Resource getCityImageByCityId(Long cityId) {
         if (cityId != null) {
             City cityById = findCityById(cityId);
-            if (cityById != null && cityById.getStatus().equals(StatusEnum.FROM_CSV.name())) {
-                String updatedImageLocation = saveImageToFileStorage(cityById);
-                if (!cityById.getImageLocation().equals(updatedImageLocation)) {
-                    updateCityLocation(cityById, updatedImageLocation);
-                } else {
-                    return null;
-                }
-            }
-
             if (cityById != null) {
-                return getFileSystemResource(cityById);
+                return getCityImage(cityById);
             } else {
                 return null;
             }
@@ -116,118 +341,518 @@ public class CityServiceImpl implements CityService {
         }
     }
 
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public Resource getCityImage(City city) {
+        if (!ensureImageIsStored(city)) {
+            return null;
+        }
+        Resource cachedImage = cityImageCache.get(city);
+        if (cachedImage != null) {
+            recordServedImage(cachedImage, CityMetrics.SOURCE_MEMORY);
+            return cachedImage;
+        }
+        Resource fileSystemResource = getFileSystemResource(city);
+        if (fileSystemResource != null) {
+            recordServedImage(fileSystemResource, CityMetrics.SOURCE_DISK);
+        }
+        return cacheFileSystemResource(city, fileSystemResource);
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public Resource getCityImageRendition(City city, int width) {
+        if (!ensureImageIsStored(city)) {
+            return null;
+        }
+        return cityImageRenditions.getRendition(city, width);
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     public boolean uploadCityImage(MultipartFile imageFile, Long cityId) {
         City cityById = findCityById(cityId);
         try {
             if (imageFile != null) {
-                byte[] imageInBytes = imageFile.getBytes();
-                String cityTitle = cityById.getTitle();
-                String cityImageFormat = getCityImageFormat(cityById.getImageLocation());
-                Path pathToCityImageInFileStorage = fileSystemRepository.saveCityImage(imageInBytes, cityTitle, cityImageFormat);
-                String updatedImageLocation = pathToCityImageInFileStorage.toString();
-                updateCityLocation(cityById, updatedImageLocation);
+                String cityImageFormat = ImageUtils.getImageFormat(cityById.getImageLocation());
+                StoredImage storedImage;
+                try (InputStream imageContent = imageFile.getInputStream()) {
+                    storedImage = fileSystemRepository.saveCityImage(imageContent, cityImageFormat);
+                }
+                if (storedImage == null) {
+                    return false;
+                }
+                updateCityLocation(cityById, storedImage);
+                cityImageCache.invalidate(cityId);
                 return true;
             } else {
                 return false;
             }
-        } catch (IOException | URISyntaxException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            log.error("Failed to store uploaded image of city {}", cityId, e);
         }
 
         return false;
     }
 
-    List<City> getCitiesDataFromCsv() {
-        List<City> citiesList = new ArrayList<>();
-        Path pathToFile = Paths.get(CityServiceImpl.CSV_DATA_DIR);
-        try (BufferedReader br = Files.newBufferedReader(pathToFile)) {
-            br.readLine();
-            String row;
-            while ((row = br.readLine()) != null) {
-                String[] rowAttributes = row.split(COMMA_DELIMITER);
-                City city = getCityFromCsvRow(rowAttributes);
-                citiesList.add(city);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    public int deleteUnreferencedImages() {
+        Set<String> referencedLocations = new HashSet<>(
+                cityRepository.findImageLocationsByStatus(StatusEnum.DOWNLOADED.name()));
+        try {
+            return fileSystemRepository.deleteUnreferencedImages(referencedLocations, imageGcGracePeriod);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return citiesList;
     }
 
-    private City getCityFromCsvRow(String[] rowAttributes) {
-        Long cityId = Long.parseLong(rowAttributes[0]);
-        String cityName = rowAttributes[1];
-        String cityImageUrl = rowAttributes[2];
-        return new City(cityId, cityName, cityImageUrl, StatusEnum.FROM_CSV.name());
+    /**
+     * Lazily parses the csv, one record per pulled element, the header first. The caller must close the stream.
+     */
+    Stream<CsvRecord> streamCsvRecords() throws IOException {
+        return new CsvParser(csvDelimiter).parse(Paths.get(csvPath), csvParallelism, csvChunkBytes);
     }
 
-    private String saveImageToFileStorage(City city) {
-        try {
-            byte[] cityImageContent = getCityImageContent(city);
-            if (cityImageContent.length == 0) {
-                return city.getImageLocation();
-            }
-            String cityTitle = city.getTitle();
-            String cityImageFormat = getCityImageFormat(city.getImageLocation());
-            Path pathToCityImageInFileStorage = fileSystemRepository.saveCityImage(cityImageContent, cityTitle, cityImageFormat);
-            return pathToCityImageInFileStorage.toAbsolutePath().toString();
+    /**
+     * Reads the csv and writes it chunk by chunk. A csv which cannot be read to the end fails the sync, so the rows
+     * written so far are rolled back and no city is deleted for missing from a partially read csv.
+     */
+    private void syncCsvRows(CsvSync sync, int batchSize) {
+        List<City> chunk = new ArrayList<>(batchSize);
+        try (Stream<CsvRecord> records = streamCsvRecords()) {
+            Iterator<CsvRecord> iterator = records.iterator();
+            CsvColumns columns = iterator.hasNext() ? getCsvColumns(iterator.next()) : null;
+            while (iterator.hasNext()) {
+                sync.checkCancelled();
+                City city = getValidCity(iterator.next(), columns, sync);
+                sync.progress.onRowParsed();
+                if (city == null) {
+                    continue;
+                }
+                chunk.add(city);
+                if (chunk.size() == batchSize) {
+                    syncCitiesChunk(chunk, sync);
+                }
+            }
+            syncCitiesChunk(chunk, sync);
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(e);
+            throw new UncheckedIOException("Failed to read " + csvPath, e);
         }
-        return city.getImageLocation();
     }
 
-    private byte[] getCityImageContent(City city) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        InputStream is = null;
-        URL url = null;
-        try {
-            if (fileSystemRepository.isValidURL(city.getImageLocation())) {
-                url = new URL(city.getImageLocation());
-                is = url.openStream();
+    private boolean isExactMatch(CitySuggestion suggestion, String searchText) {
+        return CityTitleIndex.normalize(suggestion.getTitle()).equals(CityTitleIndex.normalize(searchText));
+    }
+
+    private int getPageSize(int size) {
+        return Math.min(Math.max(size, 1), MAX_PAGE_SIZE);
+    }
 
-                byte[] byteChunk = new byte[4096];
-                int n;
+    /**
+     * Compares the chunk with the stored rows by id and row hash and writes only the differences, one batch per kind
+     * of change. A changed image url drops the stored image, so only those cities are downloaded again.
+     */
+    private void syncCitiesChunk(List<City> chunk, CsvSync sync) {
+        Map<Long, City> citiesById = new LinkedHashMap<>();
+        chunk.forEach(city -> citiesById.put(city.getId(), city));
+        Map<Long, CitySource> sourcesById = cityBatchRepository.findCitySources(citiesById.keySet());
 
-                while ((n = is.read(byteChunk)) > 0) {
-                    baos.write(byteChunk, 0, n);
-                }
+        List<City> inserts = new ArrayList<>();
+        List<City> titleUpdates = new ArrayList<>();
+        List<City> sourceUpdates = new ArrayList<>();
+        for (City city : citiesById.values()) {
+            city.setSourceUrl(city.getImageLocation());
+            city.setRowHash(getRowHash(city));
+            sync.markSeen(city.getId());
+            CitySource source = sourcesById.get(city.getId());
+            if (source == null) {
+                inserts.add(city);
+            } else if (city.getRowHash().equals(source.getRowHash())) {
+                sync.unchanged++;
+            } else if (source.getSourceUrl() == null || city.getSourceUrl().equals(source.getSourceUrl())) {
+                // rows imported before source urls were kept have nothing to compare with, their images stay
+                titleUpdates.add(city);
+            } else {
+                sourceUpdates.add(city);
             }
-        } catch (IOException e) {
-            System.err.printf("Failed while reading bytes from %s: %s", url != null ? url.toExternalForm() : null, e.getMessage());
-            e.printStackTrace();
-        } finally {
-            if (is != null) {
-                is.close();
+        }
+        cityBatchRepository.insertCities(inserts);
+        cityBatchRepository.updateCityTitles(titleUpdates);
+        cityBatchRepository.updateCitySources(sourceUpdates);
+        sourceUpdates.forEach(city -> cityImageCache.invalidate(city.getId()));
+        Stream.of(inserts, titleUpdates, sourceUpdates)
+                .flatMap(List::stream)
+                .forEach(city -> cityTitleIndex.put(city.getId(), city.getTitle()));
+        if (!inserts.isEmpty() || !titleUpdates.isEmpty() || !sourceUpdates.isEmpty()) {
+            cityTitlesCache.invalidate();
+        }
+
+        sync.rows += chunk.size();
+        sync.inserted += inserts.size();
+        sync.updated += titleUpdates.size() + sourceUpdates.size();
+        sync.imagesRequeued += sourceUpdates.size();
+        sync.progress.onRowsWritten(inserts.size() + titleUpdates.size() + sourceUpdates.size(),
+                inserts.size() + sourceUpdates.size());
+        chunk.clear();
+    }
+
+    private void deleteCitiesMissingFromCsv(CsvSync sync, int batchSize) {
+        sync.sortSeenIds();
+        long afterId = Long.MIN_VALUE;
+        List<Long> ids;
+        do {
+            sync.checkCancelled();
+            ids = cityBatchRepository.findCityIdsAfter(afterId, batchSize);
+            List<Long> missingIds = ids.stream()
+                    .filter(id -> !sync.isSeen(id))
+                    .collect(Collectors.toList());
+            cityBatchRepository.deleteCities(missingIds);
+            if (!missingIds.isEmpty()) {
+                cityTitlesCache.invalidate();
+            }
+            missingIds.forEach(id -> {
+                cityTitleIndex.remove(id);
+                cityImageCache.invalidate(id);
+            });
+            sync.deleted += missingIds.size();
+            sync.progress.onRowsWritten(missingIds.size(), 0);
+            if (!ids.isEmpty()) {
+                afterId = ids.get(ids.size() - 1);
             }
+        } while (ids.size() == batchSize);
+    }
+
+    private static String getRowHash(City city) {
+        String row = city.getTitle() + '\n' + city.getImageLocation();
+        return HashUtils.sha256Hex(row.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void logImportThroughput(CitySyncResult result, long elapsedNanos) {
+        double elapsedSeconds = Math.max(elapsedNanos, 1) / 1_000_000_000d;
+        log.info("Synced {} cities from csv in {} ms ({} rows/sec): {} inserted, {} updated ({} images re-queued), "
+                        + "{} deleted, {} unchanged",
+                result.getRows(), Math.round(elapsedSeconds * 1000), Math.round(result.getRows() / elapsedSeconds),
+                result.getInserted(), result.getUpdated(), result.getImagesRequeued(), result.getDeleted(),
+                result.getUnchanged());
+        if (result.getRejected() > 0) {
+            log.warn("Rejected {} csv rows, first: {}", result.getRejected(), result.getErrors().stream()
+                    .map(error -> "line " + error.getLine() + ": " + error.getMessage())
+                    .collect(Collectors.joining("; ")));
         }
+    }
 
-        return baos.toByteArray();
+    /**
+     * The image hash and timestamp are the validators of the served image, so only the image store sets them, and
+     * the source url and row hash decide what the next csv sync writes, so only the sync sets them. Whatever a client
+     * sends is dropped and the stored values are carried over by {@link #keepStoredImageMetadata}.
+     */
+    private static void ignoreClientManagedFields(City city) {
+        city.setImageHash(null);
+        city.setImageUpdatedAt(null);
+        city.setSourceUrl(null);
+        city.setRowHash(null);
     }
 
-    private void updateCityLocation(City city, String updatedImageLocation) {
-        city.setImageLocation(updatedImageLocation);
-        city.setStatus(StatusEnum.DOWNLOADED.name());
-        updateCity(city);
+    /**
+     * Clients update cities with the fields they know about, so the hash and timestamp of an unchanged stored image
+     * and the csv import state are carried over instead of being wiped.
+     */
+    private void keepStoredImageMetadata(City city) {
+        if (city.getId() == null || (city.getImageHash() != null && city.getSourceUrl() != null)) {
+            return;
+        }
+        Optional<City> storedCity = cityRepository.findById(city.getId());
+        if (storedCity == null || storedCity.isEmpty()) {
+            return;
+        }
+        if (city.getImageHash() == null && city.getImageLocation().equals(storedCity.get().getImageLocation())) {
+            city.setImageHash(storedCity.get().getImageHash());
+            city.setImageUpdatedAt(storedCity.get().getImageUpdatedAt());
+        }
+        if (city.getSourceUrl() == null) {
+            city.setSourceUrl(storedCity.get().getSourceUrl());
+            city.setRowHash(storedCity.get().getRowHash());
+        }
+    }
+
+    /**
+     * Same rules as {@link #updateCity(City)}: image metadata and csv import state sent by the client are ignored,
+     * the stored image metadata survives only while the location is unchanged.
+     */
+    private static void applyUpdate(City storedCity, City city) {
+        if (!city.getImageLocation().equals(storedCity.getImageLocation())) {
+            storedCity.setImageHash(null);
+            storedCity.setImageUpdatedAt(null);
+        }
+        storedCity.setTitle(city.getTitle());
+        storedCity.setImageLocation(city.getImageLocation());
+        storedCity.setStatus(city.getStatus());
     }
 
+    private static void checkBulkSize(int size) {
+        if (size > MAX_BULK_SIZE) {
+            throw new IllegalArgumentException("At most " + MAX_BULK_SIZE + " cities can be handled at once");
+        }
+    }
 
-    private String getCityImageFormat(String locationString) {
-        return locationString.substring(locationString.lastIndexOf("."));
+    private static boolean isValidCity(City city) {
+        return city.getTitle() != null && !city.getTitle().isBlank()
+                && city.getStatus() != null && !city.getStatus().isBlank()
+                && city.getImageLocation() != null && !city.getImageLocation().isBlank();
     }
 
-    private byte[] getFileSystemResource(City city) {
-        FileSystemResource inFileSystem = fileSystemRepository.findInFileSystem(city.getImageLocation());
+    private void validateCity(City city) {
+        if (city == null) {
+            throw new IllegalArgumentException("City is null");
+        } else if (city.getTitle().isBlank() || city.getStatus().isBlank() || city.getImageLocation().isBlank()) {
+            throw new IllegalArgumentException("City data is empty");
+        }
+    }
+
+    private CsvColumns getCsvColumns(CsvRecord header) {
+        if (!header.isValid()) {
+            throw new IllegalArgumentException("Invalid csv header: " + header.getError());
+        }
+        List<String> names = Arrays.stream(header.getFields()).map(String::trim).collect(Collectors.toList());
+        return new CsvColumns(getCsvColumn(names, csvIdColumn), getCsvColumn(names, csvTitleColumn),
+                getCsvColumn(names, csvImageColumn));
+    }
+
+    private static int getCsvColumn(List<String> names, String name) {
+        int column = names.indexOf(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("Csv header has no column " + name + ": " + names);
+        }
+        return column;
+    }
+
+    /**
+     * @return the city of the record or null when the record is rejected, the reason is recorded on the sync
+     */
+    private City getValidCity(CsvRecord record, CsvColumns columns, CsvSync sync) {
+        if (!record.isValid()) {
+            sync.reject(record.getLineNumber(), null, record.getError());
+            return null;
+        }
+        String[] fields = record.getFields();
+        if (fields.length <= columns.maxColumn) {
+            sync.reject(record.getLineNumber(), null,
+                    "Expected " + (columns.maxColumn + 1) + " columns but found " + fields.length);
+            return null;
+        }
+        Long cityId;
         try {
-            if (inFileSystem != null) {
-                return Files.readAllBytes(inFileSystem.getFile().toPath());
+            cityId = Long.parseLong(fields[columns.id].trim());
+        } catch (NumberFormatException e) {
+            sync.reject(record.getLineNumber(), null, "Invalid city id: " + fields[columns.id]);
+            return null;
+        }
+        City city = new City(cityId, fields[columns.title], fields[columns.imageLocation], StatusEnum.FROM_CSV.name());
+        try {
+            validateCity(city);
+        } catch (IllegalArgumentException e) {
+            sync.reject(record.getLineNumber(), cityId, e.getMessage());
+            return null;
+        }
+        return city;
+    }
+
+    /**
+     * Downloads the image of a {@link StatusEnum#FROM_CSV} city and points the city at the stored file.
+     *
+     * @return false when the image could not be downloaded
+     */
+    private boolean ensureImageIsStored(City city) {
+        if (city.getStatus().equals(StatusEnum.FROM_CSV.name())) {
+            StoredImage storedImage = saveImageToFileStorage(city);
+            if (storedImage == null) {
+                return false;
             }
+            try {
+                updateCityLocation(city, storedImage);
+            } finally {
+                releaseDownloadAfterCommit(city.getId());
+            }
+        }
+        return true;
+    }
+
+    private StoredImage saveImageToFileStorage(City city) {
+        try {
+            return cityImageDownloader.downloadToFileStorage(city);
         } catch (IOException e) {
-            System.err.printf("Failed while reading bytes from %s: %s", inFileSystem, e.getMessage());
-            e.printStackTrace();
+            log.warn("Failed to download image of city {} from {}", city.getId(), city.getImageLocation(), e);
         }
         return null;
     }
+
+    /**
+     * Runs the action once the surrounding transaction commits, or right away outside of a transaction.
+     */
+    private static void runAfterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private void releaseDownloadAfterCommit(Long cityId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cityImageDownloader.releaseDownload(cityId);
+                }
+            });
+        } else {
+            cityImageDownloader.releaseDownload(cityId);
+        }
+    }
+
+    private void updateCityLocation(City city, StoredImage storedImage) {
+        city.setImageLocation(storedImage.getPath().toAbsolutePath().toString());
+        city.setStatus(StatusEnum.DOWNLOADED.name());
+        city.setImageHash(storedImage.getHash());
+        city.setImageUpdatedAt(storedImage.getStoredAt());
+        saveCity(city);
+    }
+
+    /**
+     * Saves the city without touching the title index, for writes which keep the title.
+     */
+    private City saveCity(City city) {
+        validateCity(city);
+        keepStoredImageMetadata(city);
+        cityImageCache.invalidate(city.getId());
+        return cityRepository.save(city);
+    }
+
+    private Resource cacheFileSystemResource(City city, Resource fileSystemResource) {
+        if (fileSystemResource == null) {
+            return null;
+        }
+        try {
+            Resource cachedImage = cityImageCache.put(city, fileSystemResource);
+            if (cachedImage != null) {
+                return cachedImage;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to cache image of city {}: {}", city.getId(), e.getMessage());
+        }
+        return fileSystemResource;
+    }
+
+    private Resource getFileSystemResource(City city) {
+        Timer.Sample lookup = cityMetrics.startImageLookup();
+        FileSystemResource inFileSystem = fileSystemRepository.findInFileSystem(city.getImageLocation());
+        if (inFileSystem != null && inFileSystem.isReadable()) {
+            cityMetrics.stopImageLookup(lookup, CityMetrics.OUTCOME_SUCCESS);
+            return inFileSystem;
+        }
+        cityMetrics.stopImageLookup(lookup, CityMetrics.OUTCOME_FAILURE);
+        log.warn("Image of city {} is not readable: {}", city.getId(), city.getImageLocation());
+        return null;
+    }
+
+    private void recordServedImage(Resource image, String source) {
+        try {
+            cityMetrics.imageServed(source, image.contentLength());
+        } catch (IOException e) {
+            // the size is only reported, serving the image fails on its own if the file is gone
+        }
+    }
+
+    /**
+     * Progress of one csv sync. Seen ids are kept as a sorted primitive array, so cities missing from the csv can be
+     * found without holding the whole table in memory.
+     */
+    private static final class CsvSync {
+
+        private final ImportProgress progress;
+
+        private long[] seenIds = new long[1024];
+
+        private int seenCount;
+
+        private long rows;
+
+        private long inserted;
+
+        private long updated;
+
+        private long imagesRequeued;
+
+        private long deleted;
+
+        private long unchanged;
+
+        private long rejected;
+
+        private boolean rejectedUnknownId;
+
+        private final List<CsvRowError> errors = new ArrayList<>();
+
+        CsvSync(ImportProgress progress) {
+            this.progress = progress;
+        }
+
+        void checkCancelled() {
+            if (progress.isCancelRequested()) {
+                throw new CancellationException("Csv import was cancelled");
+            }
+        }
+
+        void reject(long line, Long cityId, String message) {
+            rejected++;
+            progress.onRowRejected();
+            if (cityId != null) {
+                markSeen(cityId);
+            } else {
+                rejectedUnknownId = true;
+            }
+            if (errors.size() < MAX_REPORTED_CSV_ERRORS) {
+                errors.add(new CsvRowError(line, message));
+            }
+        }
+
+        void markSeen(long id) {
+            if (seenCount == seenIds.length) {
+                seenIds = Arrays.copyOf(seenIds, seenCount * 2);
+            }
+            seenIds[seenCount++] = id;
+        }
+
+        void sortSeenIds() {
+            Arrays.sort(seenIds, 0, seenCount);
+        }
+
+        boolean isSeen(long id) {
+            return Arrays.binarySearch(seenIds, 0, seenCount, id) >= 0;
+        }
+
+        CitySyncResult toResult() {
+            return new CitySyncResult(rows, inserted, updated, imagesRequeued, deleted, unchanged, rejected,
+                    new ArrayList<>(errors));
+        }
+    }
+
+    private static final class CsvColumns {
+
+        private final int id;
+
+        private final int title;
+
+        private final int imageLocation;
+
+        private final int maxColumn;
+
+        CsvColumns(int id, int title, int imageLocation) {
+            this.id = id;
+            this.title = title;
+            this.imageLocation = imageLocation;
+            this.maxColumn = Math.max(id, Math.max(title, imageLocation));
+        }
+    }
 }
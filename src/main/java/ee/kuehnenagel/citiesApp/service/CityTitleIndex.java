@@ -0,0 +1,325 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.CitySuggestion;
+import ee.kuehnenagel.citiesApp.model.CityTitleView;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory search index over city titles.
+ * <p>
+ * Titles are normalized to lower case without diacritics. Queries shorter than three characters are answered from a
+ * sorted map of word suffixes, i.e. they match the start of any word of a title but not the middle of a word, unlike
+ * the database LIKE search used before the index is ready. Longer queries intersect trigram posting lists and match
+ * anywhere in the title. Results are ranked exact match, title prefix, word prefix, substring, then by shorter title
+ * and id. Every candidate is ranked and only the best limit of them are kept, so a short query matching many titles
+ * still returns the best matches.
+ * <p>
+ * The index is built from the database once the application is ready and kept current by the service on every write.
+ * Until then {@link #isReady()} is false and callers fall back to the database.
+ */
+@Slf4j
+@Component
+public class CityTitleIndex {
+
+    private static final int NGRAM_SIZE = 3;
+
+    private static final int REBUILD_PAGE_SIZE = 1000;
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    private final CityRepository cityRepository;
+
+    private final Object rebuildLock = new Object();
+
+    private volatile Index index = new Index();
+
+    private volatile Index rebuildingIndex;
+
+    private volatile boolean ready;
+
+    public CityTitleIndex(CityRepository cityRepository) {
+        this.cityRepository = cityRepository;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Rebuilds the whole index from the database. Writes arriving meanwhile are applied to both indexes.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        synchronized (rebuildLock) {
+            long startedAt = System.nanoTime();
+            Index newIndex = new Index();
+            rebuildingIndex = newIndex;
+            try {
+                long lastId = 0;
+                List<CityTitleView> cities;
+                do {
+                    cities = cityRepository.findByIdGreaterThanOrderByIdAsc(lastId, PageRequest.of(0, REBUILD_PAGE_SIZE));
+                    for (CityTitleView city : cities) {
+                        newIndex.put(city.getId(), city.getTitle());
+                        lastId = city.getId();
+                    }
+                } while (cities.size() == REBUILD_PAGE_SIZE);
+                index = newIndex;
+                ready = true;
+            } finally {
+                rebuildingIndex = null;
+            }
+            log.info("Indexed {} city titles in {} ms", newIndex.size(), (System.nanoTime() - startedAt) / 1_000_000);
+        }
+    }
+
+    public void put(Long cityId, String title) {
+        if (cityId == null || title == null) {
+            return;
+        }
+        index.put(cityId, title);
+        Index newIndex = rebuildingIndex;
+        if (newIndex != null) {
+            newIndex.put(cityId, title);
+        }
+    }
+
+    public void remove(Long cityId) {
+        index.remove(cityId);
+        Index newIndex = rebuildingIndex;
+        if (newIndex != null) {
+            newIndex.remove(cityId);
+        }
+    }
+
+    /**
+     * @return at most limit cities whose title matches the search text, best match first
+     */
+    public List<CitySuggestion> search(String searchText, int limit) {
+        String query = normalize(searchText);
+        if (query.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return index.search(query, limit);
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text.trim(), Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Index {
+
+        private final Map<Long, String> titles = new ConcurrentHashMap<>();
+
+        private final Map<Long, String> normalizedTitles = new ConcurrentHashMap<>();
+
+        private final Map<String, Set<Long>> trigrams = new ConcurrentHashMap<>();
+
+        private final ConcurrentSkipListMap<String, Set<Long>> wordSuffixes = new ConcurrentSkipListMap<>();
+
+        synchronized void put(Long cityId, String title) {
+            remove(cityId);
+            String normalizedTitle = normalize(title);
+            titles.put(cityId, title);
+            normalizedTitles.put(cityId, normalizedTitle);
+            for (String trigram : getTrigrams(normalizedTitle)) {
+                trigrams.computeIfAbsent(trigram, key -> ConcurrentHashMap.newKeySet()).add(cityId);
+            }
+            for (String suffix : getWordSuffixes(normalizedTitle)) {
+                wordSuffixes.computeIfAbsent(suffix, key -> ConcurrentHashMap.newKeySet()).add(cityId);
+            }
+        }
+
+        synchronized void remove(Long cityId) {
+            String normalizedTitle = normalizedTitles.remove(cityId);
+            titles.remove(cityId);
+            if (normalizedTitle == null) {
+                return;
+            }
+            for (String trigram : getTrigrams(normalizedTitle)) {
+                removeFromPostings(trigrams, trigram, cityId);
+            }
+            for (String suffix : getWordSuffixes(normalizedTitle)) {
+                removeFromPostings(wordSuffixes, suffix, cityId);
+            }
+        }
+
+        int size() {
+            return titles.size();
+        }
+
+        List<CitySuggestion> search(String query, int limit) {
+            TopMatches topMatches = new TopMatches(limit);
+            if (query.length() < NGRAM_SIZE) {
+                for (Set<Long> cityIds : wordSuffixes.subMap(query, query + Character.MAX_VALUE).values()) {
+                    for (Long cityId : cityIds) {
+                        offer(topMatches, cityId, query);
+                    }
+                }
+            } else {
+                for (Long cityId : findBySubstring(query)) {
+                    offer(topMatches, cityId, query);
+                }
+            }
+            return topMatches.toSuggestions();
+        }
+
+        private void offer(TopMatches topMatches, Long cityId, String query) {
+            if (topMatches.contains(cityId)) {
+                return;
+            }
+            String normalizedTitle = normalizedTitles.get(cityId);
+            String title = titles.get(cityId);
+            if (normalizedTitle != null && title != null) {
+                topMatches.offer(new Match(cityId, title, normalizedTitle.length(), rank(normalizedTitle, query)));
+            }
+        }
+
+        private Collection<Long> findBySubstring(String query) {
+            List<Set<Long>> postings = new ArrayList<>();
+            for (String trigram : getTrigrams(query)) {
+                Set<Long> cityIds = trigrams.get(trigram);
+                if (cityIds == null || cityIds.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                postings.add(cityIds);
+            }
+            postings.sort(Comparator.comparingInt(Set::size));
+
+            List<Long> candidates = new ArrayList<>();
+            for (Long cityId : postings.get(0)) {
+                String normalizedTitle = normalizedTitles.get(cityId);
+                if (normalizedTitle != null && normalizedTitle.contains(query)) {
+                    candidates.add(cityId);
+                }
+            }
+            return candidates;
+        }
+
+        private static int rank(String normalizedTitle, String query) {
+            if (normalizedTitle.equals(query)) {
+                return 0;
+            } else if (normalizedTitle.startsWith(query)) {
+                return 1;
+            } else if (getWordSuffixes(normalizedTitle).stream().anyMatch(suffix -> suffix.startsWith(query))) {
+                return 2;
+            }
+            return 3;
+        }
+
+        private static void removeFromPostings(Map<String, Set<Long>> postings, String key, Long cityId) {
+            postings.computeIfPresent(key, (k, cityIds) -> {
+                cityIds.remove(cityId);
+                return cityIds.isEmpty() ? null : cityIds;
+            });
+        }
+
+        private static Set<String> getTrigrams(String normalizedText) {
+            Set<String> result = new HashSet<>();
+            for (int i = 0; i + NGRAM_SIZE <= normalizedText.length(); i++) {
+                result.add(normalizedText.substring(i, i + NGRAM_SIZE));
+            }
+            return result;
+        }
+
+        private static List<String> getWordSuffixes(String normalizedTitle) {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < normalizedTitle.length(); i++) {
+                boolean wordStart = i == 0 || !Character.isLetterOrDigit(normalizedTitle.charAt(i - 1));
+                if (wordStart && Character.isLetterOrDigit(normalizedTitle.charAt(i))) {
+                    result.add(normalizedTitle.substring(i));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The best limit matches seen so far, kept in a heap whose head is the worst of them. The worst kept match only
+     * gets better, so a city dropped once cannot come back and only the kept ids need to be remembered.
+     */
+    private static final class TopMatches {
+
+        private final int limit;
+
+        private final PriorityQueue<Match> worstFirst;
+
+        private final Set<Long> cityIds = new HashSet<>();
+
+        private TopMatches(int limit) {
+            this.limit = limit;
+            this.worstFirst = new PriorityQueue<>(Math.min(limit, 1024), Match.ORDER.reversed());
+        }
+
+        boolean contains(Long cityId) {
+            return cityIds.contains(cityId);
+        }
+
+        void offer(Match match) {
+            if (worstFirst.size() < limit) {
+                worstFirst.add(match);
+                cityIds.add(match.cityId);
+            } else if (Match.ORDER.compare(match, worstFirst.peek()) < 0) {
+                cityIds.remove(worstFirst.poll().cityId);
+                worstFirst.add(match);
+                cityIds.add(match.cityId);
+            }
+        }
+
+        List<CitySuggestion> toSuggestions() {
+            List<Match> matches = new ArrayList<>(worstFirst);
+            matches.sort(Match.ORDER);
+            List<CitySuggestion> result = new ArrayList<>(matches.size());
+            for (Match match : matches) {
+                result.add(new CitySuggestion(match.cityId, match.title));
+            }
+            return result;
+        }
+    }
+
+    private static final class Match {
+
+        private static final Comparator<Match> ORDER = Comparator.<Match>comparingInt(match -> match.rank)
+                .thenComparingInt(match -> match.titleLength)
+                .thenComparingLong(match -> match.cityId);
+
+        private final Long cityId;
+
+        private final String title;
+
+        private final int titleLength;
+
+        private final int rank;
+
+        private Match(Long cityId, String title, int titleLength, int rank) {
+            this.cityId = cityId;
+            this.title = title;
+            this.titleLength = titleLength;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ee.kuehnenagel.citiesApp.model.CityTitlesPayload;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import ee.kuehnenagel.citiesApp.utils.HashUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Pre-serialized and pre-compressed payload of {@code /city/titles}.
+ * <p>
+ * Writes only bump a version number. The payload is rebuilt once by the first request that sees a newer version,
+ * all other requests are served the stored bytes. Within a transaction the version is bumped again once it completes,
+ * so a rebuild which ran meanwhile cannot keep uncommitted or rolled back titles.
+ */
+@Component
+public class CityTitlesCache {
+
+    private static final int ETAG_HASH_LENGTH = 32;
+
+    private final CityRepository cityRepository;
+
+    private final ObjectMapper objectMapper;
+
+    private final AtomicLong version = new AtomicLong();
+
+    private final Object rebuildLock = new Object();
+
+    private volatile CityTitlesPayload payload;
+
+    public CityTitlesCache(CityRepository cityRepository, ObjectMapper objectMapper) {
+        this.cityRepository = cityRepository;
+        this.objectMapper = objectMapper;
+    }
+
+    public CityTitlesPayload get() {
+        CityTitlesPayload current = payload;
+        if (current != null && current.getVersion() == version.get()) {
+            return current;
+        }
+        synchronized (rebuildLock) {
+            long currentVersion = version.get();
+            current = payload;
+            if (current == null || current.getVersion() != currentVersion) {
+                current = build(currentVersion);
+                payload = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Marks the payload stale, to be called whenever cities are inserted, deleted or change their title.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    version.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    private CityTitlesPayload build(long version) {
+        List<String> titles = cityRepository.findAllTitles();
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(titles);
+            String hash = HashUtils.sha256Hex(json).substring(0, ETAG_HASH_LENGTH);
+            return new CityTitlesPayload(version, json, gzip(json), "\"" + hash + "\"", "\"" + hash + "-gzip\"");
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize city titles", e);
+        }
+    }
+
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,13 @@
+package ee.kuehnenagel.citiesApp.service;
+
+public interface ImagePrefetchService {
+
+    /**
+     * Starts downloading the images of all not yet downloaded cities in the background.
+     *
+     * @return false when a prefetch job is already running
+     */
+    boolean startPrefetch();
+
+    boolean isRunning();
+}
@@ -0,0 +1,201 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.CityBatchRepository;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import ee.kuehnenagel.citiesApp.utils.StatusEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background job which downloads the images of all {@link StatusEnum#FROM_CSV} cities ahead of the first view.
+ * <p>
+ * Downloads run on a fixed worker pool with a concurrency limit per remote host, failed downloads are retried with
+ * exponential backoff, and finished cities are flipped to {@link StatusEnum#DOWNLOADED} in JDBC batches.
+ */
+@Slf4j
+@Service
+public class ImagePrefetchServiceImpl implements ImagePrefetchService {
+
+    private final CityRepository cityRepository;
+
+    private final CityBatchRepository cityBatchRepository;
+
+    private final CityImageDownloader cityImageDownloader;
+
+    private final int perHostConcurrency;
+
+    private final int maxAttempts;
+
+    private final long backoffMillis;
+
+    private final int batchSize;
+
+    private final ExecutorService downloadExecutor;
+
+    private final ExecutorService coordinatorExecutor =
+            Executors.newSingleThreadExecutor(new CustomizableThreadFactory("image-prefetch-"));
+
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public ImagePrefetchServiceImpl(CityRepository cityRepository,
+                                    CityBatchRepository cityBatchRepository,
+                                    CityImageDownloader cityImageDownloader,
+                                    @Value("${cities.image-prefetch.threads:8}") int threads,
+                                    @Value("${cities.image-prefetch.per-host-concurrency:4}") int perHostConcurrency,
+                                    @Value("${cities.image-prefetch.max-attempts:3}") int maxAttempts,
+                                    @Value("${cities.image-prefetch.backoff-ms:500}") long backoffMillis,
+                                    @Value("${cities.image-prefetch.batch-size:100}") int batchSize) {
+        this.cityRepository = cityRepository;
+        this.cityBatchRepository = cityBatchRepository;
+        this.cityImageDownloader = cityImageDownloader;
+        this.perHostConcurrency = Math.max(1, perHostConcurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = backoffMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.downloadExecutor = Executors.newFixedThreadPool(Math.max(1, threads),
+                new CustomizableThreadFactory("image-download-"));
+    }
+
+    public boolean startPrefetch() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        coordinatorExecutor.execute(() -> {
+            try {
+                prefetchAllImages();
+            } catch (RuntimeException e) {
+                log.error("Image prefetch failed", e);
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        coordinatorExecutor.shutdownNow();
+        downloadExecutor.shutdownNow();
+    }
+
+    private void prefetchAllImages() {
+        long startedAt = System.nanoTime();
+        AtomicLong downloaded = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long lastId = 0;
+        List<City> cities;
+        do {
+            cities = cityRepository.findByStatusAndIdGreaterThanOrderByIdAsc(
+                    StatusEnum.FROM_CSV.name(), lastId, PageRequest.of(0, batchSize));
+            if (cities.isEmpty()) {
+                break;
+            }
+            lastId = cities.get(cities.size() - 1).getId();
+
+            List<CompletableFuture<City>> downloads = new ArrayList<>(cities.size());
+            for (City city : cities) {
+                downloads.add(CompletableFuture.supplyAsync(() -> downloadWithRetries(city), downloadExecutor));
+            }
+            List<City> downloadedCities = new ArrayList<>(cities.size());
+            for (CompletableFuture<City> download : downloads) {
+                City downloadedCity = download.join();
+                if (downloadedCity != null) {
+                    downloadedCities.add(downloadedCity);
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+            try {
+                cityBatchRepository.updateDownloadedImageLocations(downloadedCities);
+            } finally {
+                downloadedCities.forEach(city -> cityImageDownloader.releaseDownload(city.getId()));
+            }
+            downloaded.addAndGet(downloadedCities.size());
+        } while (cities.size() == batchSize && !Thread.currentThread().isInterrupted());
+
+        log.info("Image prefetch finished in {} ms: {} downloaded, {} failed",
+                (System.nanoTime() - startedAt) / 1_000_000, downloaded.get(), failed.get());
+    }
+
+    /**
+     * @return a copy of the city pointing at the stored image, or null when every attempt failed
+     */
+    private City downloadWithRetries(City city) {
+        Semaphore permits = hostPermits.computeIfAbsent(getHost(city.getImageLocation()),
+                host -> new Semaphore(perHostConcurrency));
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                StoredImage storedImage;
+                permits.acquire();
+                try {
+                    storedImage = cityImageDownloader.downloadToFileStorage(city);
+                } finally {
+                    permits.release();
+                }
+                if (storedImage == null) {
+                    return null;
+                }
+                return new City(city.getId(), city.getTitle(), storedImage.getPath().toAbsolutePath().toString(),
+                        StatusEnum.DOWNLOADED.name(), storedImage.getHash(), storedImage.getStoredAt(),
+                        city.getSourceUrl(), city.getRowHash());
+            } catch (IOException e) {
+                log.warn("Attempt {}/{} to download image of city {} failed: {}",
+                        attempt, maxAttempts, city.getId(), e.getMessage());
+                if (attempt < maxAttempts && !sleep(backoffMillis << (attempt - 1))) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (RuntimeException e) {
+                log.error("Failed to download image of city {}", city.getId(), e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private String getHost(String imageLocation) {
+        try {
+            String host = URI.create(imageLocation).getHost();
+            return host != null ? host : "";
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
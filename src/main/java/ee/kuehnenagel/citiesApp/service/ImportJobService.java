@@ -0,0 +1,40 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.ImportJob;
+
+import java.util.List;
+
+public interface ImportJobService {
+
+    /**
+     * Queues a csv import. Imports run one at a time in the background.
+     */
+    ImportJob submitImport();
+
+    /**
+     * Queues a csv import like {@link #submitImport()} and waits for it, so it never overlaps another import.
+     *
+     * @return the result of the import
+     * @throws IllegalStateException when the import fails
+     * @throws java.util.concurrent.CancellationException when the import is cancelled
+     */
+    CitySyncResult runImport();
+
+    /**
+     * @return the job or null when it is unknown or was forgotten
+     */
+    ImportJob getJob(String jobId);
+
+    /**
+     * @return the most recent jobs, newest first
+     */
+    List<ImportJob> getJobs();
+
+    /**
+     * Asks the job to stop. A queued job never starts, a running one is rolled back.
+     *
+     * @return the job or null when it is unknown
+     */
+    ImportJob cancelJob(String jobId);
+}
@@ -0,0 +1,138 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.ImportJob;
+import ee.kuehnenagel.citiesApp.utils.ImportStatusEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Runs csv imports as background jobs on a single thread, so imports never overlap, and keeps the most recent jobs
+ * around for status requests. Synchronous imports go through the same thread and wait for their job.
+ */
+@Slf4j
+@Service
+public class ImportJobServiceImpl implements ImportJobService {
+
+    private final CityService cityService;
+
+    private final CityTitleIndex cityTitleIndex;
+
+    private final int retainedJobs;
+
+    private final ExecutorService importExecutor =
+            Executors.newSingleThreadExecutor(new CustomizableThreadFactory("csv-import-"));
+
+    private final Map<String, ImportJob> jobsById = new ConcurrentHashMap<>();
+
+    public ImportJobServiceImpl(CityService cityService, CityTitleIndex cityTitleIndex,
+                                @Value("${cities.import.jobs.retained:20}") int retainedJobs) {
+        this.cityService = cityService;
+        this.cityTitleIndex = cityTitleIndex;
+        this.retainedJobs = Math.max(1, retainedJobs);
+    }
+
+    public ImportJob submitImport() {
+        ImportJob job = newJob();
+        importExecutor.execute(() -> runImport(job));
+        return job;
+    }
+
+    public CitySyncResult runImport() {
+        ImportJob job = newJob();
+        Future<?> run = importExecutor.submit(() -> runImport(job));
+        try {
+            run.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.requestCancel();
+            throw new IllegalStateException("Interrupted while waiting for csv import " + job.getId(), e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Csv import " + job.getId() + " failed", e.getCause());
+        }
+        if (job.getStatus() == ImportStatusEnum.CANCELLED) {
+            throw new CancellationException("Csv import " + job.getId() + " was cancelled");
+        }
+        if (job.getStatus() != ImportStatusEnum.COMPLETED) {
+            throw new IllegalStateException("Csv import " + job.getId() + " failed: " + job.getError());
+        }
+        return job.getResult();
+    }
+
+    public ImportJob getJob(String jobId) {
+        return jobsById.get(jobId);
+    }
+
+    public List<ImportJob> getJobs() {
+        return jobsById.values().stream()
+                .sorted(Comparator.comparing(ImportJob::getSubmittedAt).reversed())
+                .collect(Collectors.toList());
+    }
+
+    public ImportJob cancelJob(String jobId) {
+        ImportJob job = jobsById.get(jobId);
+        if (job != null && !job.isFinished()) {
+            job.requestCancel();
+        }
+        return job;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobsById.values().forEach(ImportJob::requestCancel);
+        importExecutor.shutdownNow();
+    }
+
+    private void runImport(ImportJob job) {
+        if (job.isCancelRequested()) {
+            job.cancelled();
+            return;
+        }
+        job.started();
+        try {
+            CitySyncResult result = cityService.syncCitiesFromCsv(job);
+            job.completed(result);
+        } catch (CancellationException e) {
+            log.info("Csv import {} was cancelled after {} rows", job.getId(), job.getRowsParsed());
+            job.cancelled();
+            // the rolled back rows were already put into the title index
+            cityTitleIndex.rebuild();
+        } catch (RuntimeException e) {
+            log.error("Csv import {} failed", job.getId(), e);
+            job.failed(e.getMessage());
+            cityTitleIndex.rebuild();
+        }
+    }
+
+    private ImportJob newJob() {
+        ImportJob job = new ImportJob(UUID.randomUUID().toString());
+        jobsById.put(job.getId(), job);
+        forgetOldJobs();
+        return job;
+    }
+
+    private void forgetOldJobs() {
+        List<ImportJob> finishedJobs = getJobs().stream()
+                .filter(ImportJob::isFinished)
+                .collect(Collectors.toList());
+        int excess = jobsById.size() - retainedJobs;
+        for (int i = finishedJobs.size() - 1; i >= 0 && excess > 0; i--, excess--) {
+            jobsById.remove(finishedJobs.get(i).getId());
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streaming RFC 4180 csv parser.
+ * <p>
+ * Fields may be quoted, contain the delimiter, escaped quotes ({@code ""}) and line breaks; records end with LF or
+ * CRLF and blank lines are skipped. A quote opens a quoted field only at the start of a field, inside an unquoted
+ * field it is plain text. A malformed record is returned as a {@link CsvRecord} carrying the error and parsing
+ * continues on the next line, so one bad row does not fail the whole file. A quoted field may span any number of
+ * lines, one which is never closed runs to the end of the input and is reported as a single unterminated record.
+ * A leading UTF-8 byte order mark is skipped.
+ * <p>
+ * Files larger than one chunk are parsed in parallel. A quick sequential pass over the raw bytes tracks the quote
+ * state from the start of the file with the same rules as the parser and splits only between records, which is
+ * exact because neither quotes, line breaks nor an ASCII delimiter occur inside multi-byte UTF-8 sequences. The
+ * chunks are then decoded and parsed on a small pool, and records are handed out in file order, the same records as
+ * a sequential parse.
+ */
+public class CsvParser {
+
+    private static final int EOF = -1;
+
+    private static final char BOM = '\uFEFF';
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private static final String UNTERMINATED_QUOTED_FIELD = "Unterminated quoted field";
+
+    private final char delimiter;
+
+    public CsvParser(char delimiter) {
+        if (delimiter == '"' || delimiter == '\r' || delimiter == '\n') {
+            throw new IllegalArgumentException("Invalid csv delimiter: " + delimiter);
+        }
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Lazily parses the reader, one record per pulled element. Closing the stream closes the reader.
+     */
+    public Stream<CsvRecord> parse(Reader reader) {
+        RecordReader recordReader = new RecordReader(reader, 1);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(recordReader,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> closeQuietly(reader));
+    }
+
+    /**
+     * Parses the UTF-8 file, in parallel chunks of about chunkBytes when it is larger than that and the delimiter is
+     * an ASCII character. The caller must close the stream.
+     */
+    public Stream<CsvRecord> parse(Path file, int parallelism, long chunkBytes) throws IOException {
+        if (parallelism <= 1 || delimiter > 0x7F || Files.size(file) <= chunkBytes) {
+            return parse(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+        }
+        List<Chunk> chunks = findChunks(file, chunkBytes);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "csv-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ChunkIterator iterator = new ChunkIterator(chunks, channel, executor, parallelism);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    executor.shutdownNow();
+                    closeQuietly(channel);
+                });
+    }
+
+    /**
+     * Splits the file at the first record boundary after every chunkBytes bytes. The bytes are scanned with the quote
+     * rules of {@link RecordReader}, so a line break inside a quoted field never ends a chunk.
+     */
+    List<Chunk> findChunks(Path file, long chunkBytes) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long chunkStart = 0;
+        long chunkFirstLine = 1;
+        long position = 0;
+        long line = 1;
+        ScanState state = ScanState.FIELD_START;
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                int i = position == 0 && startsWithBom(buffer, n) ? UTF8_BOM.length : 0;
+                for (; i < n; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        line++;
+                    }
+                    state = nextState(state, b);
+                    long next = position + i + 1;
+                    if (b == '\n' && state == ScanState.FIELD_START && next - chunkStart >= chunkBytes) {
+                        chunks.add(new Chunk(chunkStart, next - chunkStart, chunkFirstLine));
+                        chunkStart = next;
+                        chunkFirstLine = line;
+                    }
+                }
+                position += n;
+            }
+        }
+        if (position > chunkStart) {
+            chunks.add(new Chunk(chunkStart, position - chunkStart, chunkFirstLine));
+        }
+        return chunks;
+    }
+
+    private ScanState nextState(ScanState state, byte b) {
+        switch (state) {
+            case QUOTED:
+                return b == '"' ? ScanState.QUOTE_IN_QUOTED : ScanState.QUOTED;
+            case QUOTE_IN_QUOTED:
+                return b == '"' ? ScanState.QUOTED : isFieldEnd(b) ? ScanState.FIELD_START : ScanState.SKIP_LINE;
+            case SKIP_LINE:
+                return b == '\n' ? ScanState.FIELD_START : ScanState.SKIP_LINE;
+            case FIELD_START:
+                if (b == '"') {
+                    return ScanState.QUOTED;
+                }
+                // falls through, the byte belongs to an unquoted field
+            default:
+                return isFieldEnd(b) ? ScanState.FIELD_START : ScanState.UNQUOTED;
+        }
+    }
+
+    private boolean isFieldEnd(byte b) {
+        return b == delimiter || b == '\r' || b == '\n';
+    }
+
+    private static boolean startsWithBom(byte[] bytes, int length) {
+        if (length < UTF8_BOM.length) {
+            return false;
+        }
+        for (int i = 0; i < UTF8_BOM.length; i++) {
+            if (bytes[i] != UTF8_BOM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<CsvRecord> parseChunk(FileChannel channel, Chunk chunk) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(chunk.length));
+        long position = chunk.offset;
+        while (bytes.hasRemaining()) {
+            int n = channel.read(bytes, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+        bytes.flip();
+        String text = StandardCharsets.UTF_8.decode(bytes).toString();
+        List<CsvRecord> records = new ArrayList<>();
+        new RecordReader(new StringReader(text), chunk.firstLine).forEachRemaining(records::add);
+        return records;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing left to do with a stream that is being closed
+        }
+    }
+
+    /**
+     * Where {@link #findChunks} is within a record, a byte level copy of the states of {@link RecordReader}.
+     */
+    private enum ScanState {
+        FIELD_START, UNQUOTED, QUOTED, QUOTE_IN_QUOTED, SKIP_LINE
+    }
+
+    static final class Chunk {
+
+        final long offset;
+
+        final long length;
+
+        final long firstLine;
+
+        Chunk(long offset, long length, long firstLine) {
+            this.offset = offset;
+            this.length = length;
+            this.firstLine = firstLine;
+        }
+    }
+
+    /**
+     * Keeps up to parallelism chunks in flight and hands out their records in file order.
+     */
+    private final class ChunkIterator implements Iterator<CsvRecord> {
+
+        private final Iterator<Chunk> chunks;
+
+        private final FileChannel channel;
+
+        private final ExecutorService executor;
+
+        private final int parallelism;
+
+        private final Deque<Future<List<CsvRecord>>> parsedChunks = new ArrayDeque<>();
+
+        private Iterator<CsvRecord> current = Collections.emptyIterator();
+
+        ChunkIterator(List<Chunk> chunks, FileChannel channel, ExecutorService executor, int parallelism) {
+            this.chunks = chunks.iterator();
+            this.channel = channel;
+            this.executor = executor;
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                while (parsedChunks.size() < parallelism && chunks.hasNext()) {
+                    Chunk chunk = chunks.next();
+                    parsedChunks.add(executor.submit(() -> parseChunk(channel, chunk)));
+                }
+                if (parsedChunks.isEmpty()) {
+                    return false;
+                }
+                current = await(parsedChunks.poll()).iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public CsvRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        private List<CsvRecord> await(Future<List<CsvRecord>> parsedChunk) {
+            try {
+                return parsedChunk.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while parsing csv", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw new UncheckedIOException((IOException) e.getCause());
+                }
+                throw new IllegalStateException("Failed to parse csv chunk", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Character level state machine over a buffered reader. Field text is collected in one reused builder and only
+     * the finished field values are allocated.
+     */
+    private final class RecordReader implements Iterator<CsvRecord> {
+
+        private final Reader reader;
+
+        private final char[] buffer = new char[BUFFER_SIZE];
+
+        private final StringBuilder field = new StringBuilder();
+
+        private final List<String> fields = new ArrayList<>();
+
+        private int position;
+
+        private int limit;
+
+        private int pushedBack = EOF;
+
+        private long line;
+
+        private boolean started;
+
+        private CsvRecord nextRecord;
+
+        RecordReader(Reader reader, long firstLine) {
+            this.reader = reader;
+            this.line = firstLine;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRecord == null) {
+                try {
+                    nextRecord = readRecord();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return nextRecord != null;
+        }
+
+        @Override
+        public CsvRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            CsvRecord record = nextRecord;
+            nextRecord = null;
+            return record;
+        }
+
+        private CsvRecord readRecord() throws IOException {
+            int c = read();
+            if (!started) {
+                started = true;
+                if (c == BOM) {
+                    c = read();
+                }
+            }
+            while (c == '\r' || c == '\n') {
+                endLine(c);
+                c = read();
+            }
+            if (c == EOF) {
+                return null;
+            }
+            long recordLine = line;
+            fields.clear();
+            while (true) {
+                field.setLength(0);
+                if (c == '"') {
+                    while (true) {
+                        c = read();
+                        if (c == EOF) {
+                            return new CsvRecord(recordLine, null, UNTERMINATED_QUOTED_FIELD);
+                        } else if (c == '"') {
+                            c = read();
+                            if (c != '"') {
+                                break;
+                            }
+                        } else if (c == '\n') {
+                            line++;
+                        }
+                        field.append((char) c);
+                    }
+                    if (c != delimiter && c != '\n' && c != '\r' && c != EOF) {
+                        skipLine(c);
+                        return new CsvRecord(recordLine, null, "Unexpected character after closing quote");
+                    }
+                } else {
+                    while (c != delimiter && c != '\n' && c != '\r' && c != EOF) {
+                        field.append((char) c);
+                        c = read();
+                    }
+                }
+                fields.add(field.toString());
+                if (c != delimiter) {
+                    break;
+                }
+                c = read();
+            }
+            endLine(c);
+            return new CsvRecord(recordLine, fields.toArray(new String[0]), null);
+        }
+
+        private void endLine(int c) throws IOException {
+            if (c == '\r') {
+                c = read();
+                if (c != '\n') {
+                    pushedBack = c;
+                    return;
+                }
+            }
+            if (c == '\n') {
+                line++;
+            }
+        }
+
+        private void skipLine(int c) throws IOException {
+            while (c != '\n' && c != EOF) {
+                c = read();
+            }
+            if (c == '\n') {
+                line++;
+            }
+        }
+
+        private int read() throws IOException {
+            if (pushedBack != EOF) {
+                int c = pushedBack;
+                pushedBack = EOF;
+                return c;
+            }
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return EOF;
+                }
+            }
+            return buffer[position++];
+        }
+    }
+}
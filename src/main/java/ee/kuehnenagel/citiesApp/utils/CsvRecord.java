@@ -0,0 +1,28 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * One record of a csv file, or the reason it could not be parsed.
+ */
+@Getter
+@AllArgsConstructor
+public class CsvRecord {
+
+    /**
+     * 1-based line the record starts on.
+     */
+    private final long lineNumber;
+
+    /**
+     * Fields of the record, null when the record is malformed.
+     */
+    private final String[] fields;
+
+    private final String error;
+
+    public boolean isValid() {
+        return error == null;
+    }
+}
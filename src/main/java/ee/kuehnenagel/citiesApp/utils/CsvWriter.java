@@ -0,0 +1,65 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes RFC 4180 csv records, the counterpart of {@link CsvParser}.
+ * <p>
+ * Fields containing the delimiter, a quote or a line break are quoted and their quotes doubled, null is written as
+ * an empty field. Records end with LF. The writer is not buffered itself, so wrap slow targets in a buffered writer.
+ */
+public class CsvWriter {
+
+    private final Writer writer;
+
+    private final char delimiter;
+
+    public CsvWriter(Writer writer, char delimiter) {
+        if (delimiter == '"' || delimiter == '\r' || delimiter == '\n') {
+            throw new IllegalArgumentException("Invalid csv delimiter: " + delimiter);
+        }
+        this.writer = writer;
+        this.delimiter = delimiter;
+    }
+
+    public void writeRecord(String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write(delimiter);
+            }
+            writeField(fields[i]);
+        }
+        writer.write('\n');
+    }
+
+    private void writeField(String field) throws IOException {
+        if (field == null) {
+            return;
+        }
+        if (!needsQuotes(field)) {
+            writer.write(field);
+            return;
+        }
+        writer.write('"');
+        int start = 0;
+        int quote;
+        while ((quote = field.indexOf('"', start)) >= 0) {
+            writer.write(field, start, quote + 1 - start);
+            writer.write('"');
+            start = quote + 1;
+        }
+        writer.write(field, start, field.length() - start);
+        writer.write('"');
+    }
+
+    private boolean needsQuotes(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == delimiter || c == '"' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,28 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public enum ExportFormatEnum {
+
+    NDJSON("application/x-ndjson", "ndjson"),
+    CSV("text/csv", "csv");
+
+    private final String contentType;
+
+    private final String fileExtension;
+
+    /**
+     * @return the format with the given name in any case, or null when there is none
+     */
+    public static ExportFormatEnum fromName(String name) {
+        for (ExportFormatEnum format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
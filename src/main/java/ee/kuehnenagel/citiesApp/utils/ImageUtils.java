@@ -0,0 +1,14 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+public final class ImageUtils {
+
+    private ImageUtils() {
+    }
+
+    /**
+     * Returns the extension of an image location including the dot, e.g. ".jpg".
+     */
+    public static String getImageFormat(String locationString) {
+        return locationString.substring(locationString.lastIndexOf("."));
+    }
+}
@@ -0,0 +1,10 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+public enum ImportStatusEnum {
+
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED,
+    CANCELLED
+}
@@ -0,0 +1,8 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+public enum UpdateStatusEnum {
+
+    UPDATED,
+    NOT_FOUND,
+    INVALID
+}
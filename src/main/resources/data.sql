@@ -4,5 +4,9 @@ CREATE TABLE cities (
                                    id BIGINT AUTO_INCREMENT PRIMARY KEY,
                                    title VARCHAR(255) NOT NULL,
                                    image_location VARCHAR(1000) NOT NULL,
-                                   status VARCHAR(255) NOT NULL
+                                   status VARCHAR(255) NOT NULL,
+                                   image_hash VARCHAR(64),
+                                   image_updated_at TIMESTAMP,
+                                   source_url VARCHAR(1000),
+                                   row_hash VARCHAR(64)
 );
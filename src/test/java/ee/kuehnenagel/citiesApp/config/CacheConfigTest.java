@@ -0,0 +1,125 @@
+package ee.kuehnenagel.citiesApp.config;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class CacheConfigTest {
+
+    private static final String SOURCE_URL = "https://example.com/tallinn.jpg";
+
+    private Cache cache;
+
+    @Before
+    public void setUp() {
+        cache = new CacheConfig().cacheManager("maximumSize=100").getCache(CityRepository.CITIES_CACHE);
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    /**
+     * Should hand every concurrent reader its own copy, so changes of one reader are never seen by another
+     */
+    @Test
+    public void getWhenReadersChangeTheirCitiesConcurrentlyThenCacheKeepsTheStoredState() throws Exception {
+        cache.put(1L, fromCsv());
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        AtomicInteger changedReads = new AtomicInteger();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int reader = 0; reader < 8; reader++) {
+                results.add(readers.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        City city = cache.get(1L, City.class);
+                        if (!"FROM_CSV".equals(city.getStatus()) || !SOURCE_URL.equals(city.getImageLocation())) {
+                            changedReads.incrementAndGet();
+                        }
+                        // what getCityImage does before the new location is saved
+                        city.setImageLocation("/images/ab/cd/abcd.jpg");
+                        city.setStatus("DOWNLOADED");
+                        city.setImageHash("abcd");
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+
+        assertEquals(0, changedReads.get());
+        City cached = (City) cache.get(1L).get();
+        assertEquals(fromCsv(), cached);
+        assertNotSame(cache.get(1L).get(), cached);
+    }
+
+    /**
+     * Should keep the committed city when a write changing the cached instance is rolled back
+     */
+    @Test
+    public void evictWhenTransactionRollsBackThenCacheKeepsTheCommittedCity() {
+        cache.put(1L, fromCsv());
+
+        TransactionSynchronizationManager.initSynchronization();
+        City city = cache.get(1L, City.class);
+        city.setImageLocation("/images/ab/cd/abcd.jpg");
+        city.setStatus("DOWNLOADED");
+        cache.evict(1L);
+        TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                TransactionSynchronization.STATUS_ROLLED_BACK);
+        TransactionSynchronizationManager.clearSynchronization();
+
+        assertEquals(fromCsv(), cache.get(1L).get());
+    }
+
+    /**
+     * Should cache a snapshot taken at commit, so a managed entity changed later or rolled back is not cached
+     */
+    @Test
+    public void putWhenEntityChangesAfterCommitOrRollsBackThenCacheHoldsTheCommittedSnapshot() {
+        City managed = fromCsv();
+        TransactionSynchronizationManager.initSynchronization();
+        cache.put(1L, managed);
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+        TransactionSynchronizationManager.clearSynchronization();
+        managed.setStatus("DOWNLOADED");
+
+        TransactionSynchronizationManager.initSynchronization();
+        cache.put(2L, new City(2L, "Tartu", "https://example.com/tartu.jpg", "FROM_CSV"));
+        TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                TransactionSynchronization.STATUS_ROLLED_BACK);
+        TransactionSynchronizationManager.clearSynchronization();
+
+        assertEquals("FROM_CSV", cache.get(1L, City.class).getStatus());
+        assertNull(cache.get(2L));
+    }
+
+    private static City fromCsv() {
+        return new City(1L, "Tallinn", SOURCE_URL, "FROM_CSV", null, null, SOURCE_URL, "hash");
+    }
+}
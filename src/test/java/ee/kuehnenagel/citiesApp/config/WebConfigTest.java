@@ -0,0 +1,61 @@
+package ee.kuehnenagel.citiesApp.config;
+
+import org.junit.Test;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WebConfigTest {
+
+    private final WebConfig.AsyncAttributesInterceptor interceptor = new WebConfig.AsyncAttributesInterceptor();
+
+    private final Callable<Object> task = () -> null;
+
+    /**
+     * Should apply the per request timeout before the async processing starts
+     */
+    @Test
+    public void beforeConcurrentHandlingWhenTimeoutIsSetThenApplyIt() {
+        AsyncWebRequest request = mock(AsyncWebRequest.class);
+        when(request.getAttribute(WebConfig.ASYNC_TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST)).thenReturn(60_000L);
+
+        interceptor.beforeConcurrentHandling(request, task);
+
+        verify(request).setTimeout(60_000L);
+    }
+
+    /**
+     * Should run the completion callback of the request once the async processing is over
+     */
+    @Test
+    public void afterCompletionWhenCallbackIsSetThenRunIt() {
+        AtomicInteger completions = new AtomicInteger();
+        NativeWebRequest request = mock(NativeWebRequest.class);
+        when(request.getAttribute(WebConfig.ASYNC_COMPLETION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST))
+                .thenReturn((Runnable) completions::incrementAndGet);
+
+        interceptor.afterCompletion(request, task);
+
+        assertEquals(1, completions.get());
+    }
+
+    /**
+     * Should leave requests without a completion callback alone
+     */
+    @Test
+    public void afterCompletionWhenNoCallbackIsSetThenDoNothing() {
+        NativeWebRequest request = mock(NativeWebRequest.class);
+
+        interceptor.afterCompletion(request, task);
+
+        verify(request).getAttribute(WebConfig.ASYNC_COMPLETION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+    }
+}
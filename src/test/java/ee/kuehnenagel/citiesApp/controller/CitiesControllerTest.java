@@ -0,0 +1,195 @@
+package ee.kuehnenagel.citiesApp.controller;
+
+import ee.kuehnenagel.citiesApp.config.WebConfig;
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.service.CityExportService;
+import ee.kuehnenagel.citiesApp.service.CityImageRenditions;
+import ee.kuehnenagel.citiesApp.service.CityService;
+import ee.kuehnenagel.citiesApp.utils.ExportFormatEnum;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CitiesControllerTest {
+
+    private static final Instant IMAGE_UPDATED_AT = Instant.parse("2023-01-02T03:04:05Z");
+
+    @Mock
+    private CityService cityService;
+
+    @Mock
+    private CityImageRenditions cityImageRenditions;
+
+    @Mock
+    private CityExportService cityExportService;
+
+    @Mock
+    private WebRequest webRequest;
+
+    private CitiesController citiesController;
+
+    private City tallinn;
+
+    @Before
+    public void setUp() {
+        citiesController = new CitiesController();
+        citiesController.cityService = cityService;
+        citiesController.cityImageRenditions = cityImageRenditions;
+        citiesController.cityExportService = cityExportService;
+        citiesController.cityImageExecutor = Runnable::run;
+        citiesController.imageCacheMaxAgeSeconds = 3600;
+        citiesController.imageRequestTimeoutMillis = 5_000;
+        tallinn = new City(1L, "Tallinn", "1.jpg", "DOWNLOADED", "abc", IMAGE_UPDATED_AT);
+    }
+
+    /**
+     * Should answer 304 for a width served by the rendition the client already has
+     */
+    @Test
+    public void getCityImageByCityIdWhenETagMatchesRenditionWidthThenNotModified() throws Exception {
+        when(cityService.findCityById(1L)).thenReturn(tallinn);
+        when(cityImageRenditions.getRenditionWidth(100)).thenReturn(128);
+        when(webRequest.checkNotModified("\"abc-w128\"", IMAGE_UPDATED_AT.toEpochMilli())).thenReturn(true);
+
+        ResponseEntity<Resource> response = citiesController.getCityImageByCityId(1L, 100, webRequest).get();
+
+        assertNull(response);
+        verify(cityService, never()).getCityImageRendition(tallinn, 128);
+    }
+
+    /**
+     * Should tag a rendition with its rendition width instead of the requested width
+     */
+    @Test
+    public void getCityImageByCityIdShouldTagRenditionWithRenditionWidth() throws Exception {
+        when(cityService.findCityById(1L)).thenReturn(tallinn);
+        when(cityImageRenditions.getRenditionWidth(100)).thenReturn(128);
+        when(webRequest.checkNotModified(anyString(), anyLong())).thenReturn(false);
+        when(cityService.getCityImageRendition(tallinn, 128)).thenReturn(new ByteArrayResource(new byte[]{1}));
+
+        ResponseEntity<Resource> response = citiesController.getCityImageByCityId(1L, 100, webRequest).get();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("\"abc-w128\"", response.getHeaders().getETag());
+    }
+
+    /**
+     * Should answer 504 when the image is not ready within the request timeout
+     */
+    @Test
+    public void getCityImageByCityIdWhenImageIsNotReadyInTimeThenGatewayTimeout() throws Exception {
+        when(cityService.findCityById(1L)).thenReturn(tallinn);
+        citiesController.cityImageExecutor = runnable -> {
+        };
+        citiesController.imageRequestTimeoutMillis = 50;
+
+        ResponseEntity<Resource> response = citiesController.getCityImageByCityId(1L, null, webRequest)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(HttpStatus.GATEWAY_TIMEOUT, response.getStatusCode());
+    }
+
+    /**
+     * Should answer 503 when the image pool rejects the request
+     */
+    @Test
+    public void getCityImageByCityIdWhenImagePoolIsFullThenServiceUnavailable() throws Exception {
+        when(cityService.findCityById(1L)).thenReturn(tallinn);
+        citiesController.cityImageExecutor = runnable -> {
+            throw new RejectedExecutionException("full");
+        };
+
+        ResponseEntity<Resource> response = citiesController.getCityImageByCityId(1L, null, webRequest).get();
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        verify(cityService, never()).getCityImage(tallinn);
+    }
+
+    /**
+     * Should answer 503 without streaming when all export slots are taken
+     */
+    @Test
+    public void exportCitiesWhenAllExportSlotsAreTakenThenServiceUnavailable() throws IOException {
+        when(cityExportService.tryAcquireExport()).thenReturn(false);
+
+        ResponseEntity<StreamingResponseBody> response = citiesController.exportCities("ndjson", webRequest);
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        verify(cityExportService, never()).exportCities(any(ExportFormatEnum.class), any(OutputStream.class));
+    }
+
+    /**
+     * Should free the export slot once the export has been streamed, also when it fails
+     */
+    @Test
+    public void exportCitiesShouldReleaseExportSlotAfterStreaming() throws IOException {
+        when(cityExportService.tryAcquireExport()).thenReturn(true);
+        when(cityExportService.exportCities(eq(ExportFormatEnum.CSV), any(OutputStream.class)))
+                .thenReturn(2L)
+                .thenThrow(new IOException("Broken pipe"));
+
+        citiesController.exportCities("csv", webRequest).getBody().writeTo(new ByteArrayOutputStream());
+        verify(cityExportService, times(1)).releaseExport();
+        try {
+            citiesController.exportCities("csv", webRequest).getBody().writeTo(new ByteArrayOutputStream());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Broken pipe", e.getMessage());
+        }
+        verify(cityExportService, times(2)).releaseExport();
+    }
+
+    /**
+     * Should free the export slot once when the async processing ends, also when the body was never written
+     */
+    @Test
+    public void exportCitiesWhenAsyncProcessingEndsThenReleaseExportSlotOnce() throws IOException {
+        when(cityExportService.tryAcquireExport()).thenReturn(true);
+
+        StreamingResponseBody body = citiesController.exportCities("csv", webRequest).getBody();
+        Runnable onAsyncCompletion = captureAsyncCompletion();
+        onAsyncCompletion.run();
+        onAsyncCompletion.run();
+        verify(cityExportService, times(1)).releaseExport();
+
+        body.writeTo(new ByteArrayOutputStream());
+        verify(cityExportService, times(1)).releaseExport();
+    }
+
+    private Runnable captureAsyncCompletion() {
+        ArgumentCaptor<Object> onAsyncCompletion = ArgumentCaptor.forClass(Object.class);
+        verify(webRequest).setAttribute(eq(WebConfig.ASYNC_COMPLETION_ATTRIBUTE), onAsyncCompletion.capture(),
+                eq(RequestAttributes.SCOPE_REQUEST));
+        return (Runnable) onAsyncCompletion.getValue();
+    }
+}
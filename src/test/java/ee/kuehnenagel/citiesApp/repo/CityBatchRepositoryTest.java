@@ -0,0 +1,111 @@
+package ee.kuehnenagel.citiesApp.repo;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CityBatchRepositoryTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private CacheManager cacheManager;
+
+    @Mock
+    private Cache cache;
+
+    private CityBatchRepository cityBatchRepository;
+
+    @Before
+    public void setUp() {
+        when(cacheManager.getCache(CityRepository.CITIES_CACHE)).thenReturn(cache);
+        cityBatchRepository = new CityBatchRepository(jdbcTemplate, cacheManager);
+    }
+
+    /**
+     * Should write a chunk with a single JDBC batch sized to the chunk and evict every written id
+     */
+    @Test
+    public void insertCitiesShouldWriteTheChunkWithOneBatch() {
+        List<City> chunk = List.of(
+                new City(1L, "Tallinn", "https://example.com/tallinn.jpg", "FROM_CSV"),
+                new City(2L, "Tartu", "https://example.com/tartu.jpg", "FROM_CSV"),
+                new City(3L, "Narva", "https://example.com/narva.jpg", "FROM_CSV"));
+
+        cityBatchRepository.insertCities(chunk);
+
+        verify(jdbcTemplate, times(1)).batchUpdate(anyString(), eq(chunk), eq(3),
+                ArgumentMatchers.<ParameterizedPreparedStatementSetter<City>>any());
+        verify(cache).evict(1L);
+        verify(cache).evict(3L);
+    }
+
+    /**
+     * Should not reach the database for an empty chunk
+     */
+    @Test
+    public void insertCitiesWhenChunkIsEmptyThenSkipTheBatch() {
+        cityBatchRepository.insertCities(List.of());
+
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), ArgumentMatchers.<List<City>>any(), anyInt(),
+                ArgumentMatchers.<ParameterizedPreparedStatementSetter<City>>any());
+    }
+
+    /**
+     * Should point only rows still waiting for their image at the download, rows written meanwhile are kept
+     */
+    @Test
+    public void updateDownloadedImageLocationsShouldOnlyUpdateCitiesStillFromCsv() {
+        JdbcTemplate h2 = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + getClass().getSimpleName() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        h2.execute("CREATE TABLE cities (id BIGINT PRIMARY KEY, title VARCHAR(255), image_location VARCHAR(1000), "
+                + "status VARCHAR(255), image_hash VARCHAR(64), image_updated_at TIMESTAMP, "
+                + "source_url VARCHAR(1000), row_hash VARCHAR(64))");
+        try {
+            h2.update("INSERT INTO cities (id, title, image_location, status) VALUES "
+                    + "(1, 'Tallinn', 'https://example.com/tallinn.jpg', 'FROM_CSV'), "
+                    + "(2, 'Tartu', '/images/uploaded-tartu.jpg', 'DOWNLOADED')");
+            CityBatchRepository repository = new CityBatchRepository(h2, cacheManager);
+
+            repository.updateDownloadedImageLocations(List.of(
+                    new City(1L, "Tallinn", "/images/tallinn.jpg", "DOWNLOADED", "aa", Instant.EPOCH),
+                    new City(2L, "Tartu", "/images/prefetched-tartu.jpg", "DOWNLOADED", "bb", Instant.EPOCH)));
+
+            Map<String, Object> tallinn = h2.queryForMap("SELECT image_location, status, image_hash FROM cities WHERE id = 1");
+            Map<String, Object> tartu = h2.queryForMap("SELECT image_location, image_hash FROM cities WHERE id = 2");
+            assertEquals("/images/tallinn.jpg", tallinn.get("IMAGE_LOCATION"));
+            assertEquals("DOWNLOADED", tallinn.get("STATUS"));
+            assertEquals("aa", tallinn.get("IMAGE_HASH"));
+            assertEquals("/images/uploaded-tartu.jpg", tartu.get("IMAGE_LOCATION"));
+            assertNull(tartu.get("IMAGE_HASH"));
+            verify(cache).evict(2L);
+        } finally {
+            h2.execute("DROP TABLE cities");
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package ee.kuehnenagel.citiesApp.repo;
+
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.utils.HashUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileSystemRepositoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path imagesDir;
+
+    private FileSystemRepository fileSystemRepository;
+
+    @Before
+    public void setUp() throws IOException {
+        imagesDir = temporaryFolder.newFolder("images").toPath();
+        fileSystemRepository = new FileSystemRepository(imagesDir.toString(), 16);
+    }
+
+    /**
+     * Should store the image under a sharded path named by its hash
+     */
+    @Test
+    public void saveCityImageShouldStoreImageUnderShardedHashPath() throws IOException {
+        byte[] content = "tallinn".getBytes(StandardCharsets.UTF_8);
+
+        StoredImage storedImage = fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".jpg");
+
+        String hash = storedImage.getHash();
+        Path expectedPath = imagesDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + ".jpg");
+        assertEquals(expectedPath, storedImage.getPath());
+        assertArrayEquals(content, Files.readAllBytes(expectedPath));
+    }
+
+    /**
+     * Should store identical images once and different images separately
+     */
+    @Test
+    public void saveCityImageWhenContentIsIdenticalThenStoreItOnce() throws IOException {
+        StoredImage first = fileSystemRepository.saveCityImage(stream("tartu"), ".jpg");
+        StoredImage second = fileSystemRepository.saveCityImage(stream("tartu"), ".jpg");
+        StoredImage other = fileSystemRepository.saveCityImage(stream("narva"), ".jpg");
+
+        assertEquals(first.getPath(), second.getPath());
+        assertNotEquals(first.getPath(), other.getPath());
+    }
+
+    /**
+     * Should name a streamed image by the SHA-256 of its content
+     */
+    @Test
+    public void saveCityImageFromStreamShouldStoreImageUnderItsHash() throws IOException {
+        byte[] content = "tallinn".getBytes(StandardCharsets.UTF_8);
+
+        StoredImage streamed = fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".jpg");
+
+        assertEquals(HashUtils.sha256Hex(content), streamed.getHash());
+        assertArrayEquals(content, Files.readAllBytes(streamed.getPath()));
+    }
+
+    /**
+     * Should reject a streamed image above the size limit and leave nothing behind
+     */
+    @Test
+    public void saveCityImageFromStreamWhenImageIsTooLargeThenThrowException() throws IOException {
+        byte[] content = "a city image which is too large".getBytes(StandardCharsets.UTF_8);
+        try {
+            fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".jpg");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Image is larger than 16 bytes", e.getMessage());
+        }
+        try (Stream<Path> files = Files.walk(imagesDir)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    /**
+     * Should delete only unreferenced images older than the grace period
+     */
+    @Test
+    public void deleteUnreferencedImagesShouldKeepReferencedAndRecentImages() throws IOException {
+        StoredImage referenced = fileSystemRepository.saveCityImage(stream("tallinn"), ".jpg");
+        StoredImage unreferenced = fileSystemRepository.saveCityImage(stream("tartu"), ".jpg");
+        StoredImage recent = fileSystemRepository.saveCityImage(stream("narva"), ".jpg");
+        FileTime twoHoursAgo = FileTime.from(Instant.now().minus(Duration.ofHours(2)));
+        Files.setLastModifiedTime(referenced.getPath(), twoHoursAgo);
+        Files.setLastModifiedTime(unreferenced.getPath(), twoHoursAgo);
+
+        int deleted = fileSystemRepository.deleteUnreferencedImages(
+                Collections.singleton(referenced.getPath().toString()), Duration.ofHours(1));
+
+        assertEquals(1, deleted);
+        assertTrue(Files.exists(referenced.getPath()));
+        assertFalse(Files.exists(unreferenced.getPath()));
+        assertTrue(Files.exists(recent.getPath()));
+    }
+
+    /**
+     * Should restart the grace period of an old unreferenced image when the same content is stored again
+     */
+    @Test
+    public void deleteUnreferencedImagesWhenImageIsStoredAgainThenKeepIt() throws IOException {
+        byte[] content = "tallinn".getBytes(StandardCharsets.UTF_8);
+        StoredImage first = fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".jpg");
+        StoredImage uploaded = fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".png");
+        FileTime twoHoursAgo = FileTime.from(Instant.now().minus(Duration.ofHours(2)));
+        Files.setLastModifiedTime(first.getPath(), twoHoursAgo);
+        Files.setLastModifiedTime(uploaded.getPath(), twoHoursAgo);
+
+        fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".jpg");
+        fileSystemRepository.saveCityImage(new ByteArrayInputStream(content), ".png");
+        int deleted = fileSystemRepository.deleteUnreferencedImages(Collections.emptySet(), Duration.ofHours(1));
+
+        assertEquals(0, deleted);
+        assertTrue(Files.exists(first.getPath()));
+        assertTrue(Files.exists(uploaded.getPath()));
+    }
+
+    /**
+     * Should keep renditions of referenced images and delete renditions of unreferenced ones
+     */
+    @Test
+    public void deleteUnreferencedImagesShouldDeleteRenditionsWithTheirOriginal() throws IOException {
+        StoredImage referenced = fileSystemRepository.saveCityImage(stream("tallinn"), ".png");
+        StoredImage unreferenced = fileSystemRepository.saveCityImage(stream("tartu"), ".png");
+        Path referencedRendition = fileSystemRepository.getRenditionPath(referenced.getHash(), 128, ".png");
+        Path unreferencedRendition = fileSystemRepository.getRenditionPath(unreferenced.getHash(), 128, ".png");
+        fileSystemRepository.saveRendition(referencedRendition, new byte[]{1});
+        fileSystemRepository.saveRendition(unreferencedRendition, new byte[]{2});
+        FileTime twoHoursAgo = FileTime.from(Instant.now().minus(Duration.ofHours(2)));
+        for (Path file : new Path[]{referenced.getPath(), unreferenced.getPath(), referencedRendition, unreferencedRendition}) {
+            Files.setLastModifiedTime(file, twoHoursAgo);
+        }
+
+        int deleted = fileSystemRepository.deleteUnreferencedImages(
+                Collections.singleton(referenced.getPath().toString()), Duration.ofHours(1));
+
+        assertEquals(2, deleted);
+        assertEquals(referenced.getPath().getParent(), referencedRendition.getParent());
+        assertTrue(Files.exists(referencedRendition));
+        assertFalse(Files.exists(unreferencedRendition));
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
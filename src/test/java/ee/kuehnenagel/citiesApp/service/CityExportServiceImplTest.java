@@ -0,0 +1,123 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import ee.kuehnenagel.citiesApp.utils.CsvParser;
+import ee.kuehnenagel.citiesApp.utils.CsvRecord;
+import ee.kuehnenagel.citiesApp.utils.ExportFormatEnum;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+
+import javax.persistence.EntityManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CityExportServiceImplTest {
+
+    @Mock
+    private CityRepository cityRepository;
+
+    @Mock
+    private EntityManager entityManager;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+    private CityExportServiceImpl cityExportService;
+
+    private City tallinn;
+
+    private City washington;
+
+    @Before
+    public void setUp() {
+        cityExportService = new CityExportServiceImpl(cityRepository, entityManager, transactionManager, objectMapper,
+                ',', "id", "name", "photo", 2);
+        tallinn = new City(1L, "Tallinn", "1.jpg", "DOWNLOADED", "abc", Instant.parse("2023-01-02T03:04:05Z"),
+                "https://example.com/tallinn.jpg", null);
+        washington = new City(2L, "Washington, \"D.C.\"", "https://example.com/dc.jpg", "FROM_CSV");
+    }
+
+    /**
+     * Should write one JSON object per line in a read-only transaction and detach every written city
+     */
+    @Test
+    public void exportCitiesAsNdjsonShouldWriteOneCityPerLine() throws IOException {
+        when(cityRepository.streamAllByOrderByIdAsc()).thenReturn(Stream.of(tallinn, washington));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        long exported = cityExportService.exportCities(ExportFormatEnum.NDJSON, output);
+
+        String[] lines = output.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, exported);
+        assertEquals(2, lines.length);
+        assertEquals("Tallinn", objectMapper.readValue(lines[0], City.class).getTitle());
+        assertEquals(washington.getTitle(), objectMapper.readValue(lines[1], City.class).getTitle());
+        assertTrue(lines[1].startsWith("{\"id\":2,"));
+        ArgumentCaptor<TransactionDefinition> transaction = ArgumentCaptor.forClass(TransactionDefinition.class);
+        verify(transactionManager).getTransaction(transaction.capture());
+        assertTrue(transaction.getValue().isReadOnly());
+        verify(entityManager, times(2)).detach(any(City.class));
+    }
+
+    /**
+     * Should write a quoted csv that the importer can read back, with the source url as the image column
+     */
+    @Test
+    public void exportCitiesAsCsvShouldBeReadableByCsvParser() throws IOException {
+        when(cityRepository.streamAllByOrderByIdAsc()).thenReturn(Stream.of(tallinn, washington));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        cityExportService.exportCities(ExportFormatEnum.CSV, output);
+
+        List<CsvRecord> records = new CsvParser(',')
+                .parse(new StringReader(output.toString(StandardCharsets.UTF_8)))
+                .collect(Collectors.toList());
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[]{"id", "name", "photo", "status", "image_location", "image_hash",
+                "image_updated_at"}, records.get(0).getFields());
+        assertArrayEquals(new String[]{"1", "Tallinn", "https://example.com/tallinn.jpg", "DOWNLOADED", "1.jpg", "abc",
+                "2023-01-02T03:04:05Z"}, records.get(1).getFields());
+        assertArrayEquals(new String[]{"2", "Washington, \"D.C.\"", "https://example.com/dc.jpg", "FROM_CSV",
+                "https://example.com/dc.jpg", "", ""}, records.get(2).getFields());
+    }
+
+    /**
+     * Should hand out no more export slots than allowed until one is released
+     */
+    @Test
+    public void tryAcquireExportWhenAllSlotsAreTakenThenRefuse() {
+        assertTrue(cityExportService.tryAcquireExport());
+        assertTrue(cityExportService.tryAcquireExport());
+        assertFalse(cityExportService.tryAcquireExport());
+
+        cityExportService.releaseExport();
+
+        assertTrue(cityExportService.tryAcquireExport());
+    }
+}
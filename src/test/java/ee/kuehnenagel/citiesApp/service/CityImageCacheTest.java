@@ -0,0 +1,111 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import io.micrometer.core.instrument.search.RequiredSearch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CityImageCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    /**
+     * Should weigh entries by their bytes and evict once the byte budget is used up
+     */
+    @Test
+    public void putWhenBudgetIsExceededThenEvictByWeight() throws Exception {
+        CityImageCache cityImageCache = new CityImageCache(100, 100, meterRegistry);
+
+        for (long id = 1; id <= 5; id++) {
+            City city = city(id);
+            assertNotNull(cityImageCache.put(city, image(city, 40)));
+        }
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (cacheMeter("cache.evictions").functionCounter().count() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(cacheMeter("cache.size").gauge().value() <= 2);
+        assertTrue(cacheMeter("cache.eviction.weight").functionCounter().count() >= 120);
+    }
+
+    /**
+     * Should publish hits and misses as cache meters
+     */
+    @Test
+    public void getShouldRecordHitsAndMisses() throws IOException {
+        CityImageCache cityImageCache = new CityImageCache(1000, 100, meterRegistry);
+        City city = city(1L);
+
+        assertNull(cityImageCache.get(city));
+        cityImageCache.put(city, image(city, 10));
+        assertNotNull(cityImageCache.get(city));
+
+        assertEquals(1, cacheMeter("cache.gets").tag("result", "hit").functionCounter().count(), 0);
+        assertEquals(1, cacheMeter("cache.gets").tag("result", "miss").functionCounter().count(), 0);
+    }
+
+    /**
+     * Should not cache images above the per-entry limit
+     */
+    @Test
+    public void putWhenImageIsLargerThanEntryLimitThenSkipIt() throws IOException {
+        CityImageCache cityImageCache = new CityImageCache(1000, 10, meterRegistry);
+        City city = city(1L);
+
+        assertNull(cityImageCache.put(city, image(city, 11)));
+        assertNull(cityImageCache.get(city));
+    }
+
+    /**
+     * Should serve an entry only while the city points at the location it was loaded from
+     */
+    @Test
+    public void getWhenCityLocationChangedThenMissAndDropTheEntry() throws IOException {
+        CityImageCache cityImageCache = new CityImageCache(1000, 100, meterRegistry);
+        City city = city(1L);
+        Resource image = image(city, 10);
+        cityImageCache.put(city, image);
+        City moved = new City(1L, city.getTitle(), city.getImageLocation() + ".new", city.getStatus());
+
+        Resource cached = cityImageCache.get(city);
+        assertNotNull(cached);
+        assertArrayEquals(Files.readAllBytes(image.getFile().toPath()), cached.getInputStream().readAllBytes());
+        assertNull(cityImageCache.get(moved));
+        assertNull(cityImageCache.get(city));
+    }
+
+    private RequiredSearch cacheMeter(String name) {
+        return meterRegistry.get(name).tag("cache", CityImageCache.CACHE_NAME);
+    }
+
+    private City city(Long id) {
+        Path location = temporaryFolder.getRoot().toPath().resolve(id + ".jpg");
+        return new City(id, "City " + id, location.toString(), "DOWNLOADED");
+    }
+
+    private static Resource image(City city, int bytes) throws IOException {
+        byte[] content = new byte[bytes];
+        Arrays.fill(content, (byte) city.getId().intValue());
+        Path file = Files.write(Path.of(city.getImageLocation()), content);
+        return new FileSystemResource(file);
+    }
+}
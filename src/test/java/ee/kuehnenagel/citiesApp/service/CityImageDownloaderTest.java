@@ -0,0 +1,110 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CityImageDownloaderTest {
+
+    private static final String URL = "https://example.com/tallinn.jpg";
+
+    private static final StoredImage STORED_IMAGE = new StoredImage(Paths.get("images", "ab.jpg"), "ab", Instant.EPOCH);
+
+    @Mock
+    private CityImageFetcher cityImageFetcher;
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    private final CountDownLatch fetchStarted = new CountDownLatch(1);
+
+    private final CountDownLatch releaseFetch = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        releaseFetch.countDown();
+        callers.shutdownNow();
+    }
+
+    /**
+     * Should run one download for concurrent callers of the same city and hand all of them its result
+     */
+    @Test
+    public void downloadToFileStorageWhenCalledConcurrentlyThenDownloadOnce() throws Exception {
+        givenBlockingFetch();
+        CityImageDownloader cityImageDownloader = new CityImageDownloader(cityImageFetcher, 10_000);
+        City city = new City(1L, "Tallinn", URL, "FROM_CSV");
+
+        List<Future<StoredImage>> downloads = new ArrayList<>();
+        downloads.add(callers.submit(() -> cityImageDownloader.downloadToFileStorage(city)));
+        assertTrue(fetchStarted.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 4; i++) {
+            downloads.add(callers.submit(() -> cityImageDownloader.downloadToFileStorage(city)));
+        }
+        Thread.sleep(50);
+        releaseFetch.countDown();
+
+        for (Future<StoredImage> download : downloads) {
+            assertSame(STORED_IMAGE, download.get(5, TimeUnit.SECONDS));
+        }
+        verify(cityImageFetcher, times(1)).fetchToFileStorage(URL);
+    }
+
+    /**
+     * Should fail waiting callers once the wait timeout passes and start a new download on the next call
+     */
+    @Test
+    public void downloadToFileStorageWhenRunningDownloadStallsThenFailWaitersAfterTimeout() throws Exception {
+        givenBlockingFetch();
+        CityImageDownloader cityImageDownloader = new CityImageDownloader(cityImageFetcher, 100);
+        City city = new City(1L, "Tallinn", URL, "FROM_CSV");
+        callers.submit(() -> cityImageDownloader.downloadToFileStorage(city));
+        assertTrue(fetchStarted.await(5, TimeUnit.SECONDS));
+
+        Future<StoredImage> waiter = callers.submit(() -> cityImageDownloader.downloadToFileStorage(city));
+        try {
+            waiter.get(5, TimeUnit.SECONDS);
+            fail("Expected the waiting caller to time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals("Image download of city 1 did not finish within 100 ms", e.getCause().getMessage());
+        }
+
+        Future<StoredImage> retry = callers.submit(() -> cityImageDownloader.downloadToFileStorage(city));
+        releaseFetch.countDown();
+        assertSame(STORED_IMAGE, retry.get(5, TimeUnit.SECONDS));
+        verify(cityImageFetcher, times(2)).fetchToFileStorage(URL);
+    }
+
+    private void givenBlockingFetch() throws IOException {
+        when(cityImageFetcher.fetchToFileStorage(URL)).thenAnswer(invocation -> {
+            fetchStarted.countDown();
+            releaseFetch.await(10, TimeUnit.SECONDS);
+            return STORED_IMAGE;
+        });
+    }
+}
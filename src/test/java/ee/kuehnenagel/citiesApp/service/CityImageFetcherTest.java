@@ -0,0 +1,265 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.sun.net.httpserver.HttpServer;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CityImageFetcherTest {
+
+    private static final byte[] IMAGE = "tallinn image".getBytes(StandardCharsets.UTF_8);
+
+    private static final String ETAG = "\"tallinn-v1\"";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<String> receivedIfNoneMatch = new CopyOnWriteArrayList<>();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final CountDownLatch releaseStalledBody = new CountDownLatch(1);
+
+    private HttpServer server;
+
+    private Path imagesDir;
+
+    private CityImageFetcher cityImageFetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/tallinn.jpg", exchange -> {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            receivedIfNoneMatch.add(String.valueOf(ifNoneMatch));
+            if (ETAG.equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            exchange.sendResponseHeaders(200, IMAGE.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(IMAGE);
+            }
+        });
+        server.createContext("/tartu.jpg", exchange -> {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+                gzip.write(IMAGE);
+            }
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, gzipped.size());
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(gzipped.toByteArray());
+            }
+        });
+        server.createContext("/stalled.jpg", exchange -> {
+            exchange.sendResponseHeaders(200, IMAGE.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(IMAGE, 0, 4);
+                os.flush();
+                releaseStalledBody.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.createContext("/empty.jpg", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            exchange.close();
+        });
+        server.createContext("/moved.jpg", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/tallinn.jpg");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/loop.jpg", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/loop.jpg");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/missing.jpg", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+
+        imagesDir = temporaryFolder.newFolder("images").toPath();
+        cityImageFetcher = createFetcher(true);
+    }
+
+    @After
+    public void tearDown() {
+        releaseStalledBody.countDown();
+        cityImageFetcher.shutdown();
+        server.stop(0);
+    }
+
+    /**
+     * Should store the fetched image and answer a repeated fetch from a conditional 304 response
+     */
+    @Test
+    public void fetchToFileStorageWhenUrlIsFetchedAgainThenSendConditionalRequest() throws IOException {
+        StoredImage first = cityImageFetcher.fetchToFileStorage(url("/tallinn.jpg"));
+        StoredImage second = cityImageFetcher.fetchToFileStorage(url("/tallinn.jpg"));
+
+        assertArrayEquals(IMAGE, Files.readAllBytes(first.getPath()));
+        assertEquals(first.getPath(), second.getPath());
+        assertEquals(List.of("null", ETAG), receivedIfNoneMatch);
+        assertEquals(1, meterRegistry.get(CityMetrics.IMAGE_DOWNLOADS).tag("outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get(CityMetrics.IMAGE_DOWNLOADS).tag("outcome", "not_modified").timer().count());
+        assertEquals(IMAGE.length, meterRegistry.get(CityMetrics.IMAGE_DOWNLOAD_BYTES).summary().totalAmount(), 0);
+    }
+
+    /**
+     * Should store the decoded image when the server answers with a gzip body
+     */
+    @Test
+    public void fetchToFileStorageWhenBodyIsGzippedThenStoreDecodedImage() throws IOException {
+        StoredImage storedImage = cityImageFetcher.fetchToFileStorage(url("/tartu.jpg"));
+
+        assertArrayEquals(IMAGE, Files.readAllBytes(storedImage.getPath()));
+    }
+
+    /**
+     * Should fail on error responses and skip invalid urls
+     */
+    @Test
+    public void fetchToFileStorageWhenImageIsMissingThenThrowException() throws IOException {
+        try {
+            cityImageFetcher.fetchToFileStorage(url("/missing.jpg"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Unexpected status 404 from " + url("/missing.jpg"), e.getMessage());
+        }
+        assertEquals(1, meterRegistry.get(CityMetrics.IMAGE_DOWNLOADS).tag("outcome", "failure").timer().count());
+        assertNull(cityImageFetcher.fetchToFileStorage("not a url"));
+    }
+
+    /**
+     * Should fail with a timeout when the server stops sending the body and store nothing
+     */
+    @Test
+    public void fetchToFileStorageWhenBodyStallsThenTimeOut() throws IOException {
+        long start = System.nanoTime();
+        try {
+            cityImageFetcher.fetchToFileStorage(url("/stalled.jpg"));
+            fail("Expected SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage().startsWith("Read of " + url("/stalled.jpg") + " timed out"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5_000);
+        assertEquals(0, countStoredFiles());
+        assertEquals(1, meterRegistry.get(CityMetrics.IMAGE_DOWNLOADS).tag("outcome", "failure").timer().count());
+    }
+
+    /**
+     * Should skip an empty body without leaving an empty image in the store
+     */
+    @Test
+    public void fetchToFileStorageWhenBodyIsEmptyThenStoreNothing() throws IOException {
+        assertNull(cityImageFetcher.fetchToFileStorage(url("/empty.jpg")));
+
+        assertEquals(0, countStoredFiles());
+        assertEquals(1, meterRegistry.get(CityMetrics.IMAGE_DOWNLOADS).tag("outcome", "skipped").timer().count());
+    }
+
+    /**
+     * Should follow a redirect to the image
+     */
+    @Test
+    public void fetchToFileStorageWhenUrlRedirectsThenFollowIt() throws IOException {
+        StoredImage storedImage = cityImageFetcher.fetchToFileStorage(url("/moved.jpg"));
+
+        assertArrayEquals(IMAGE, Files.readAllBytes(storedImage.getPath()));
+        assertEquals(List.of("null"), receivedIfNoneMatch);
+    }
+
+    /**
+     * Should fail instead of following a redirect loop forever
+     */
+    @Test
+    public void fetchToFileStorageWhenRedirectsLoopThenThrowException() {
+        try {
+            cityImageFetcher.fetchToFileStorage(url("/loop.jpg"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("More than 5 redirects from " + url("/loop.jpg"), e.getMessage());
+        }
+    }
+
+    /**
+     * Should not send any request to a loopback host when local urls are not allowed
+     */
+    @Test
+    public void fetchToFileStorageWhenHostIsLocalAndNotAllowedThenSkipIt() throws IOException {
+        CityImageFetcher publicOnlyFetcher = createFetcher(false);
+        try {
+            assertNull(publicOnlyFetcher.fetchToFileStorage(url("/tallinn.jpg")));
+            assertNull(publicOnlyFetcher.fetchToFileStorage(url("/moved.jpg")));
+        } finally {
+            publicOnlyFetcher.shutdown();
+        }
+
+        assertTrue(receivedIfNoneMatch.isEmpty());
+        assertEquals(0, countStoredFiles());
+    }
+
+    /**
+     * Should treat loopback, private, link-local and unique local addresses as internal
+     */
+    @Test
+    public void isPublicAddressWhenAddressIsInternalThenReturnFalse() throws IOException {
+        for (String internal : List.of("127.0.0.1", "10.0.0.5", "172.16.0.1", "192.168.1.1", "169.254.169.254",
+                "100.64.0.1", "0.0.0.0", "::1", "fe80::1", "fd00::1", "::ffff:127.0.0.1")) {
+            assertFalse(internal, CityImageFetcher.isPublicAddress(InetAddress.getByName(internal)));
+        }
+        for (String external : List.of("93.184.216.34", "100.128.0.1", "2606:2800:220:1::1")) {
+            assertTrue(external, CityImageFetcher.isPublicAddress(InetAddress.getByName(external)));
+        }
+    }
+
+    private CityImageFetcher createFetcher(boolean allowLocalUrls) {
+        FileSystemRepository fileSystemRepository = new FileSystemRepository(imagesDir.toString(), 1024);
+        return new CityImageFetcher(fileSystemRepository, new CityMetrics(meterRegistry), 1000, 1000, 1024,
+                allowLocalUrls, "test", 100);
+    }
+
+    private long countStoredFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(imagesDir)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+}
@@ -0,0 +1,124 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.Resource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CityImageRenditionsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FileSystemRepository fileSystemRepository;
+
+    private CityImageRenditions cityImageRenditions;
+
+    @Before
+    public void setUp() throws IOException {
+        fileSystemRepository = spy(new FileSystemRepository(temporaryFolder.newFolder("images").toString(), 1_000_000));
+        cityImageRenditions = new CityImageRenditions(fileSystemRepository, new Integer[]{64, 128, 256}, 2, 10, 5_000);
+    }
+
+    @After
+    public void tearDown() {
+        cityImageRenditions.shutdown();
+    }
+
+    /**
+     * Should round the requested width up to the next configured width and cap it at the largest one
+     */
+    @Test
+    public void getRenditionWidthShouldRoundUpToConfiguredWidth() {
+        assertEquals(64, cityImageRenditions.getRenditionWidth(1));
+        assertEquals(64, cityImageRenditions.getRenditionWidth(64));
+        assertEquals(128, cityImageRenditions.getRenditionWidth(65));
+        assertEquals(256, cityImageRenditions.getRenditionWidth(4000));
+    }
+
+    /**
+     * Should resize the image to the rounded width and keep the aspect ratio
+     */
+    @Test
+    public void getRenditionShouldResizeToRenditionWidth() throws IOException {
+        City city = city(400, 200);
+
+        Resource rendition = cityImageRenditions.getRendition(city, 100);
+
+        assertNotNull(rendition);
+        BufferedImage image = ImageIO.read(rendition.getFile());
+        assertEquals(128, image.getWidth());
+        assertEquals(64, image.getHeight());
+    }
+
+    /**
+     * Should generate a rendition once when it is requested concurrently
+     */
+    @Test
+    public void getRenditionWhenRequestedConcurrentlyThenGenerateOnce() throws Exception {
+        City city = city(400, 200);
+        CountDownLatch generationStarted = new CountDownLatch(1);
+        CountDownLatch releaseGeneration = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            generationStarted.countDown();
+            assertTrue(releaseGeneration.await(5, TimeUnit.SECONDS));
+            return invocation.callRealMethod();
+        }).when(fileSystemRepository).saveRendition(any(Path.class), any(byte[].class));
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Resource>> renditions = new ArrayList<>();
+            renditions.add(callers.submit(() -> cityImageRenditions.getRendition(city, 200)));
+            assertTrue(generationStarted.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                renditions.add(callers.submit(() -> cityImageRenditions.getRendition(city, 256)));
+            }
+            Thread.sleep(100);
+            releaseGeneration.countDown();
+
+            for (Future<Resource> rendition : renditions) {
+                Resource resource = rendition.get(5, TimeUnit.SECONDS);
+                assertNotNull(resource);
+                assertEquals(256, ImageIO.read(resource.getFile()).getWidth());
+            }
+            verify(fileSystemRepository, times(1)).saveRendition(any(Path.class), any(byte[].class));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private City city(int width, int height) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", png);
+        StoredImage storedImage = fileSystemRepository.saveCityImage(new ByteArrayInputStream(png.toByteArray()), ".png");
+        return new City(1L, "Tallinn", storedImage.getPath().toString(), "DOWNLOADED", storedImage.getHash(),
+                storedImage.getStoredAt());
+    }
+}
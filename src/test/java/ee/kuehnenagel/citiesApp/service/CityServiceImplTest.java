@@ -1,16 +1,45 @@
 package ee.kuehnenagel.citiesApp.service;
 
 import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.CitySource;
+import ee.kuehnenagel.citiesApp.model.CitySuggestion;
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.CityUpdateResult;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.CityBatchRepository;
 import ee.kuehnenagel.citiesApp.repo.CityRepository;
 import ee.kuehnenagel.citiesApp.repo.FileSystemRepository;
+import ee.kuehnenagel.citiesApp.utils.CsvRecord;
+import ee.kuehnenagel.citiesApp.utils.HashUtils;
+import ee.kuehnenagel.citiesApp.utils.UpdateStatusEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
-
+import org.springframework.core.io.Resource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -19,7 +48,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -27,61 +63,67 @@ import static org.mockito.Mockito.when;
 @RunWith(MockitoJUnitRunner.class)
 public class CityServiceImplTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Mock
     private CityRepository cityRepository;
 
+    @Mock
+    private CityBatchRepository cityBatchRepository;
+
     @Mock
     private FileSystemRepository fileSystemRepository;
 
+    @Mock
+    private CityImageDownloader cityImageDownloader;
+
+    @Mock
+    private CityImageCache cityImageCache;
+
+    @Mock
+    private CityTitleIndex cityTitleIndex;
+
+    @Mock
+    private CityImageRenditions cityImageRenditions;
+
+    @Mock
+    private CityTitlesCache cityTitlesCache;
+
+    @Spy
+    private CityMetrics cityMetrics = new CityMetrics(new SimpleMeterRegistry());
+
     @Mock
     private CityServiceImpl cityServiceMock;
 
     @InjectMocks
     private CityServiceImpl cityService;
 
+    @Captor
+    private ArgumentCaptor<List<City>> citiesCaptor;
+
     /**
-     * Should return an empty list when the csv file is empty
+     * Should return the header and the records when the csv file is not empty
      */
     @Test
-    public void getCitiesDataFromCsvWhenFileIsNotEmpty() {
-        List<City> citiesList = cityService.getCitiesDataFromCsv();
-        assertFalse(citiesList.isEmpty());
+    public void streamCsvRecordsWhenFileIsNotEmpty() throws IOException {
+        try (Stream<CsvRecord> records = cityService.streamCsvRecords()) {
+            assertTrue(records.count() > 1);
+        }
     }
 
     /**
-     * Should return a list of cities when the csv file is not empty
+     * Should return the records of the csv file rather than a fixed list of cities
      */
     @Test
-    public void getCitiesDataFromCsvWhenFileIsNotEmptyButListsAreDifferent() {
-        List<City> expectedCitiesList = new ArrayList<>();
-        expectedCitiesList.add(
-                new City(
-                        1L,
-                        "Tallinn",
-                        "https://upload.wikimedia.org/wikipedia/commons/thumb/0/0d/Tallinn_Montage_2017.jpg/1200px-Tallinn_Montage_2017.jpg",
-                        "FROM_CSV"));
-        expectedCitiesList.add(
-                new City(
-                        2L,
-                        "Tartu",
-                        "https://upload.wikimedia.org/wikipedia/commons/thumb/e/e9/Tartu_Montage_2017.jpg/1200px-Tartu_Montage_2017.jpg",
-                        "FROM_CSV"));
-        expectedCitiesList.add(
-                new City(
-                        3L,
-                        "Narva",
-                        "https://upload.wikimedia.org/wikipedia/commons/thumb/f/f4/Narva_Montage_2017.jpg/1200px-Narva_Montage_2017.jpg",
-                        "FROM_CSV"));
-        expectedCitiesList.add(
-                new City(
-                        4L,
-                        "Pärnu",
-                        "https://upload.wikimedia.org/wikipedia/commons/thumb/c/c5/P%C3%A4rnu_Montage_2017.jpg/1200px-P%C3%A4rnu_Montage_2017.jpg",
-                        "FROM_CSV"));
-
-        List<City> actualCitiesList = cityService.getCitiesDataFromCsv();
+    public void streamCsvRecordsWhenFileIsNotEmptyButListsAreDifferent() throws IOException {
+        List<String> titles;
+        try (Stream<CsvRecord> records = cityService.streamCsvRecords()) {
+            titles = records.skip(1).map(record -> record.getFields()[1]).collect(Collectors.toList());
+        }
 
-        assertNotEquals(expectedCitiesList, actualCitiesList);
+        assertNotEquals(List.of("Tallinn", "Tartu", "Narva", "Pärnu"), titles);
+        assertEquals("Tokyo", titles.get(0));
     }
 
     /**
@@ -128,7 +170,7 @@ public class CityServiceImplTest {
         Long cityId = 1L;
         when(cityRepository.findById(cityId)).thenReturn(null);
 
-        byte[] cityImageByCityId = cityService.getCityImageByCityId(cityId);
+        Resource cityImageByCityId = cityService.getCityImageByCityId(cityId);
 
         assertNull(cityImageByCityId);
     }
@@ -145,7 +187,7 @@ public class CityServiceImplTest {
 
         when(cityRepository.findById(1L)).thenReturn(java.util.Optional.of(city));
 
-        byte[] image = cityService.getCityImageByCityId(1L);
+        Resource image = cityService.getCityImageByCityId(1L);
 
         assertNull(image);
     }
@@ -163,11 +205,32 @@ public class CityServiceImplTest {
                 "https://upload.wikimedia.org/wikipedia/commons/thumb/5/5d/Tallinn_Old_Town_Panorama_from_Toompea_Hill.jpg/1200px-Tallinn_Old_Town_Panorama_from_Toompea_Hill.jpg");
         when(cityRepository.findById(cityId)).thenReturn(java.util.Optional.of(city));
 
-        byte[] cityImageByCityId = cityService.getCityImageByCityId(cityId);
+        Resource cityImageByCityId = cityService.getCityImageByCityId(cityId);
 
         assertNull(cityImageByCityId);
     }
 
+    /**
+     * Should release the finished download even when storing the downloaded image location fails
+     */
+    @Test
+    public void getCityImageWhenStoringImageLocationFailsThenReleaseDownload() throws IOException {
+        City city = new City(1L, "Tallinn", "https://example.com/tallinn.jpg", "FROM_CSV");
+        when(cityImageDownloader.downloadToFileStorage(city))
+                .thenReturn(new StoredImage(Path.of("images", "ab.jpg"), "ab", Instant.EPOCH));
+        when(cityRepository.findById(1L)).thenReturn(java.util.Optional.empty());
+        when(cityRepository.save(city)).thenThrow(new IllegalStateException("db down"));
+
+        try {
+            cityService.getCityImage(city);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("db down", e.getMessage());
+        }
+
+        verify(cityImageDownloader).releaseDownload(1L);
+    }
+
     /**
      * Should return city when the search text is found once
      */
@@ -187,6 +250,36 @@ public class CityServiceImplTest {
         assertNotEquals(city, cityBySearchText);
     }
 
+    /**
+     * Should return the exact title match even when more cities contain the search text
+     */
+    @Test
+    public void getCityBySearchTextWhenTitleMatchesExactlyThenReturnCity() {
+        City city = new City(1L, "York", "src/main/resources/images/york.jpg", "FROM_CSV");
+        when(cityRepository.findFirstByTitleIgnoreCaseOrderByIdAsc("york")).thenReturn(java.util.Optional.of(city));
+
+        City cityBySearchText = cityService.getCityBySearchText("york");
+
+        assertEquals(city, cityBySearchText);
+        verify(cityRepository, never()).findByTitle("york");
+    }
+
+    /**
+     * Should return the single match without loading it again
+     */
+    @Test
+    public void getCityBySearchTextWhenSearchTextIsFoundOnceThenReturnMatchWithoutSecondLookup() {
+        City city = new City(1L, "Tallinn", "src/main/resources/images/tallinn.jpg", "FROM_CSV");
+        List<City> cities = new ArrayList<>();
+        cities.add(city);
+        when(cityRepository.findByTitle("Tall")).thenReturn(cities);
+
+        City cityBySearchText = cityService.getCityBySearchText("Tall");
+
+        assertEquals(city, cityBySearchText);
+        verify(cityRepository, never()).findById(1L);
+    }
+
     /**
      * Should return null when the search text is not found
      */
@@ -216,16 +309,37 @@ public class CityServiceImplTest {
         assertNull(city);
     }
 
+    /**
+     * Should return an empty page once the page starts past the search result cap
+     */
+    @Test
+    public void searchCitiesWhenPageIsPastResultCapThenReturnEmptyList() {
+        List<CitySuggestion> suggestions = new ArrayList<>();
+        for (long id = 1; id <= 9980; id++) {
+            suggestions.add(new CitySuggestion(id + 100, "Aa " + id));
+        }
+        suggestions.add(new CitySuggestion(7L, "Tallinn"));
+        when(cityTitleIndex.isReady()).thenReturn(true);
+        when(cityTitleIndex.search("a", 10_000)).thenReturn(suggestions);
+        when(cityRepository.findAllById(List.of(7L))).thenReturn(List.of(new City(7L, "Tallinn", "t.jpg", "FROM_CSV")));
+
+        assertEquals(1, cityService.searchCities("a", 499, 20).size());
+        assertTrue(cityService.searchCities("a", 500, 20).isEmpty());
+        assertTrue(cityService.searchCities("a", 501, 20).isEmpty());
+        assertTrue(cityService.searchCities("a", Integer.MAX_VALUE, 500).isEmpty());
+        verify(cityTitleIndex, times(1)).search(anyString(), anyInt());
+    }
+
     /**
      * Should return a list of cities titles
      */
     @Test
     public void getCitiesTitlesListShouldReturnAListOfCitiesTitles() {
-        List<City> cities = new ArrayList<>();
-        cities.add(new City(1L, "Tallinn", "", ""));
-        cities.add(new City(2L, "Tartu", "", ""));
-        cities.add(new City(3L, "Narva", "", ""));
-        when(cityRepository.findAll()).thenReturn(cities);
+        List<String> titles = new ArrayList<>();
+        titles.add("Tallinn");
+        titles.add("Tartu");
+        titles.add("Narva");
+        when(cityRepository.findAllTitles()).thenReturn(titles);
 
         List<String> citiesTitles = cityService.getCitiesTitlesList();
 
@@ -296,6 +410,166 @@ public class CityServiceImplTest {
         assertEquals(city, updatedCity);
     }
 
+    /**
+     * Should keep the stored image hash when the city is updated without it
+     */
+    @Test
+    public void updateCityWhenImageHashIsMissingThenKeepStoredImageHash() {
+        City storedCity = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "abc", Instant.EPOCH);
+        City city = new City(1L, "Tallinn Old Town", "downloadedImages/tallinn.jpg", "DOWNLOADED");
+
+        when(cityRepository.findById(1L)).thenReturn(java.util.Optional.of(storedCity));
+        when(cityRepository.save(city)).thenReturn(city);
+
+        City updatedCity = cityService.updateCity(city);
+
+        assertEquals("abc", updatedCity.getImageHash());
+        assertEquals(Instant.EPOCH, updatedCity.getImageUpdatedAt());
+    }
+
+    /**
+     * Should ignore image validators sent by the client and keep the stored ones, or drop them with a new image
+     */
+    @Test
+    public void updateCityWhenClientSendsImageHashThenIgnoreIt() {
+        City storedCity = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "abc", Instant.EPOCH);
+        Instant forgedAt = Instant.parse("2030-01-01T00:00:00Z");
+        City sameImage = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "forged", forgedAt);
+        City newImage = new City(1L, "Tallinn", "downloadedImages/other.jpg", "DOWNLOADED", "forged", forgedAt);
+        when(cityRepository.findById(1L)).thenReturn(java.util.Optional.of(storedCity));
+        when(cityRepository.save(any(City.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        City updatedSameImage = cityService.updateCity(sameImage);
+        City updatedNewImage = cityService.updateCity(newImage);
+
+        assertEquals("abc", updatedSameImage.getImageHash());
+        assertEquals(Instant.EPOCH, updatedSameImage.getImageUpdatedAt());
+        assertNull(updatedNewImage.getImageHash());
+        assertNull(updatedNewImage.getImageUpdatedAt());
+    }
+
+    /**
+     * Should update the known cities in one pass and report unknown and invalid items
+     */
+    @Test
+    public void updateCitiesWhenSomeItemsAreUnknownOrInvalidThenReportThemPerItem() {
+        City storedCity = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "abc", Instant.EPOCH);
+        List<City> cities = List.of(
+                new City(1L, "Tallinn Old Town", "downloadedImages/tallinn.jpg", "DOWNLOADED"),
+                new City(2L, "Tartu", "downloadedImages/tartu.jpg", "DOWNLOADED"),
+                new City(3L, " ", "downloadedImages/narva.jpg", "DOWNLOADED"));
+
+        when(cityRepository.findAllById(List.of(1L, 2L, 3L))).thenReturn(List.of(storedCity));
+        when(cityRepository.save(storedCity)).thenReturn(storedCity);
+
+        List<CityUpdateResult> results = cityService.updateCities(cities);
+
+        assertEquals(UpdateStatusEnum.UPDATED, results.get(0).getStatus());
+        assertEquals("Tallinn Old Town", results.get(0).getCity().getTitle());
+        assertEquals("abc", results.get(0).getCity().getImageHash());
+        assertEquals(UpdateStatusEnum.NOT_FOUND, results.get(1).getStatus());
+        assertEquals(UpdateStatusEnum.INVALID, results.get(2).getStatus());
+        verify(cityRepository, times(1)).save(storedCity);
+        verify(cityTitleIndex).put(1L, "Tallinn Old Town");
+    }
+
+    /**
+     * Should ignore image metadata sent with a batch update and drop the stored one when the image changes
+     */
+    @Test
+    public void updateCitiesWhenClientSendsImageHashThenIgnoreIt() {
+        City tallinn = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "abc", Instant.EPOCH);
+        City tartu = new City(2L, "Tartu", "downloadedImages/tartu.jpg", "DOWNLOADED", "def", Instant.EPOCH);
+        Instant forgedAt = Instant.parse("2030-01-01T00:00:00Z");
+        List<City> cities = List.of(
+                new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "forged", forgedAt),
+                new City(2L, "Tartu", "downloadedImages/other.jpg", "DOWNLOADED", "forged", forgedAt));
+        when(cityRepository.findAllById(List.of(1L, 2L))).thenReturn(List.of(tallinn, tartu));
+        when(cityRepository.save(any(City.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        List<CityUpdateResult> results = cityService.updateCities(cities);
+
+        assertEquals("abc", results.get(0).getCity().getImageHash());
+        assertEquals(Instant.EPOCH, results.get(0).getCity().getImageUpdatedAt());
+        assertNull(results.get(1).getCity().getImageHash());
+        assertNull(results.get(1).getCity().getImageUpdatedAt());
+    }
+
+    /**
+     * Should keep the stored csv import state when a client sends its own with a single or a batch update
+     */
+    @Test
+    public void updateCitiesWhenClientSendsCsvStateThenIgnoreIt() {
+        City tallinn = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", "abc", Instant.EPOCH,
+                "https://example.com/tallinn.jpg", "row");
+        City forged = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED", null, null,
+                "https://example.com/forged.jpg", "forged");
+        when(cityRepository.findById(1L)).thenReturn(java.util.Optional.of(tallinn));
+        when(cityRepository.findAllById(List.of(1L))).thenReturn(List.of(tallinn));
+        when(cityRepository.save(any(City.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        City updatedCity = cityService.updateCity(new City(1L, "Tallinn", "downloadedImages/tallinn.jpg",
+                "DOWNLOADED", null, null, "https://example.com/forged.jpg", "forged"));
+        City batchUpdatedCity = cityService.updateCities(List.of(forged)).get(0).getCity();
+
+        assertEquals("https://example.com/tallinn.jpg", updatedCity.getSourceUrl());
+        assertEquals("row", updatedCity.getRowHash());
+        assertEquals("https://example.com/tallinn.jpg", batchUpdatedCity.getSourceUrl());
+        assertEquals("row", batchUpdatedCity.getRowHash());
+    }
+
+    /**
+     * Should update the title index and the caches only once the batch commits
+     */
+    @Test
+    public void updateCitiesShouldUpdateTitleIndexAfterCommit() {
+        City storedCity = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED");
+        when(cityRepository.findAllById(List.of(1L))).thenReturn(List.of(storedCity));
+        when(cityRepository.save(storedCity)).thenReturn(storedCity);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cityService.updateCities(List.of(new City(1L, "Tallinn Old Town", "downloadedImages/tallinn.jpg",
+                    "DOWNLOADED")));
+
+            verify(cityTitleIndex, never()).put(anyLong(), anyString());
+            verify(cityImageCache, never()).invalidate(anyLong());
+            verify(cityTitlesCache, never()).invalidate();
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        verify(cityTitleIndex).put(1L, "Tallinn Old Town");
+        verify(cityImageCache).invalidate(1L);
+        verify(cityTitlesCache).invalidate();
+    }
+
+    /**
+     * Should return the found cities in request order with one lookup
+     */
+    @Test
+    public void findCitiesByIdsWhenIdsAreGivenThenKeepRequestOrder() {
+        City tallinn = new City(1L, "Tallinn", "downloadedImages/tallinn.jpg", "DOWNLOADED");
+        City tartu = new City(2L, "Tartu", "downloadedImages/tartu.jpg", "DOWNLOADED");
+        when(cityRepository.findAllById(anyCollection())).thenReturn(List.of(tallinn, tartu));
+
+        List<City> cities = cityService.findCitiesByIds(List.of(2L, 5L, 1L));
+
+        assertEquals(List.of(tartu, tallinn), cities);
+        verify(cityRepository, times(1)).findAllById(anyCollection());
+    }
+
+    /**
+     * Should reject batches larger than the bulk limit
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void findCitiesByIdsWhenTooManyIdsThenThrowException() {
+        List<Long> cityIds = new ArrayList<>();
+        for (long id = 1; id <= 501; id++) {
+            cityIds.add(id);
+        }
+        cityService.findCitiesByIds(cityIds);
+    }
+
     /**
      * Should save the city when the city is valid
      */
@@ -315,8 +589,6 @@ public class CityServiceImplTest {
      */
     @Test
     public void initCitiesCsvDataToDbWhenCitiesListIsEmptyThenReturnFalse() {
-        List<City> citiesList = new ArrayList<>();
-        lenient().when(cityServiceMock.getCitiesDataFromCsv()).thenReturn(citiesList);
         assertFalse(cityServiceMock.initCitiesCsvDataToDb());
     }
 
@@ -325,9 +597,104 @@ public class CityServiceImplTest {
      */
     @Test
     public void initCitiesCsvDataToDbWhenCitiesListIsNotEmptyThenReturnTrue() {
-        List<City> citiesList = new ArrayList<>();
-        citiesList.add(new City());
-        lenient().when(cityServiceMock.getCitiesDataFromCsv()).thenReturn(citiesList);
         assertTrue(cityService.initCitiesCsvDataToDb());
     }
+
+    /**
+     * Should skip unchanged rows, re-queue only cities whose image url changed and delete cities missing from the csv
+     */
+    @Test
+    public void syncCitiesFromCsvShouldWriteOnlyDifferences() {
+        String tokyoUrl = "https://upload.wikimedia.org/wikipedia/commons/thumb/b/b2/"
+                + "Skyscrapers_of_Shinjuku_2009_January.jpg/500px-Skyscrapers_of_Shinjuku_2009_January.jpg";
+        String tokyoRowHash = HashUtils.sha256Hex(("Tokyo\n" + tokyoUrl).getBytes(StandardCharsets.UTF_8));
+        Map<Long, CitySource> sources = new HashMap<>();
+        sources.put(1L, new CitySource(1L, tokyoRowHash, tokyoUrl));
+        sources.put(2L, new CitySource(2L, "old", "https://example.com/old-jakarta.jpg"));
+        when(cityBatchRepository.findCitySources(anyCollection())).thenReturn(sources).thenReturn(new HashMap<>());
+        when(cityBatchRepository.findCityIdsAfter(Long.MIN_VALUE, 1000)).thenReturn(List.of(1L, 2L, 5000L));
+
+        CitySyncResult result = cityService.syncCitiesFromCsv();
+
+        assertEquals(1000, result.getRows());
+        assertEquals(998, result.getInserted());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(1, result.getImagesRequeued());
+        assertEquals(1, result.getDeleted());
+        verify(cityBatchRepository, times(2)).updateCitySources(citiesCaptor.capture());
+        assertEquals(2L, (long) citiesCaptor.getAllValues().get(0).get(0).getId());
+        verify(cityImageCache).invalidate(2L);
+        verify(cityBatchRepository).deleteCities(List.of(5000L));
+        verify(cityTitleIndex).remove(5000L);
+        verify(cityMetrics).stopImport(any(), eq(CityMetrics.OUTCOME_SUCCESS), eq(1000L));
+        verify(cityTitlesCache, times(2)).invalidate();
+    }
+
+    /**
+     * Should import the valid rows, report the rejected ones and keep cities when a rejected row has no readable id
+     */
+    @Test
+    public void syncCitiesFromCsvWhenRowsAreInvalidThenRejectThemAndSkipDeletes() throws Exception {
+        Path csv = temporaryFolder.newFile("cities.csv").toPath();
+        Files.write(csv, ("id,name,photo\n"
+                + "1,\"Washington, D.C.\",https://example.com/dc.jpg\n"
+                + "x,Tartu,https://example.com/tartu.jpg\n"
+                + "3, ,https://example.com/narva.jpg\n").getBytes(StandardCharsets.UTF_8));
+        setField("csvPath", csv.toString());
+
+        CitySyncResult result = cityService.syncCitiesFromCsv();
+
+        assertEquals(1, result.getInserted());
+        assertEquals(2, result.getRejected());
+        assertEquals(3, result.getErrors().get(0).getLine());
+        assertEquals("Invalid city id: x", result.getErrors().get(0).getMessage());
+        assertEquals("City data is empty", result.getErrors().get(1).getMessage());
+        verify(cityTitleIndex).put(1L, "Washington, D.C.");
+        verify(cityBatchRepository, never()).findCityIdsAfter(anyLong(), anyInt());
+    }
+
+    /**
+     * Should write the csv in chunks of the batch size, one insert batch per chunk
+     */
+    @Test
+    public void syncCitiesFromCsvShouldInsertOneBatchPerChunk() throws Exception {
+        Path csv = temporaryFolder.newFile("cities.csv").toPath();
+        StringBuilder rows = new StringBuilder("id,name,photo\n");
+        for (int id = 1; id <= 5; id++) {
+            rows.append(id).append(",City ").append(id).append(",https://example.com/").append(id).append(".jpg\n");
+        }
+        Files.write(csv, rows.toString().getBytes(StandardCharsets.UTF_8));
+        setField("csvPath", csv.toString());
+        setField("importBatchSize", 2);
+        when(cityBatchRepository.findCitySources(anyCollection())).thenReturn(new HashMap<>());
+
+        CitySyncResult result = cityService.syncCitiesFromCsv();
+
+        assertEquals(5, result.getInserted());
+        verify(cityBatchRepository, times(3)).insertCities(citiesCaptor.capture());
+        assertEquals(List.of(2, 2, 1), citiesCaptor.getAllValues().stream().map(List::size).collect(Collectors.toList()));
+    }
+
+    /**
+     * Should fail the sync when the csv cannot be read, so nothing is committed or deleted
+     */
+    @Test
+    public void syncCitiesFromCsvWhenCsvIsMissingThenThrowException() throws Exception {
+        setField("csvPath", temporaryFolder.getRoot().toPath().resolve("missing.csv").toString());
+
+        try {
+            cityService.syncCitiesFromCsv();
+            fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getMessage().startsWith("Failed to read "));
+        }
+        verify(cityBatchRepository, never()).findCityIdsAfter(anyLong(), anyInt());
+        verify(cityMetrics).stopImport(any(), eq(CityMetrics.OUTCOME_FAILURE), eq(0L));
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = CityServiceImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(cityService, value);
+    }
 }
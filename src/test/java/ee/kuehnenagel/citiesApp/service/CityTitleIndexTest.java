@@ -0,0 +1,124 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.CitySuggestion;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CityTitleIndexTest {
+
+    @Mock
+    private CityRepository cityRepository;
+
+    private CityTitleIndex cityTitleIndex;
+
+    @Before
+    public void setUp() {
+        cityTitleIndex = new CityTitleIndex(cityRepository);
+        cityTitleIndex.put(1L, "Tokyo");
+        cityTitleIndex.put(2L, "Kyoto");
+        cityTitleIndex.put(3L, "New York");
+        cityTitleIndex.put(4L, "York");
+        cityTitleIndex.put(5L, "São Paulo");
+        cityTitleIndex.put(6L, "Yorkton");
+    }
+
+    /**
+     * Should rank exact match, title prefix, word prefix and substring matches in this order
+     */
+    @Test
+    public void searchShouldRankExactThenPrefixThenWordPrefixThenSubstring() {
+        cityTitleIndex.put(7L, "Little Yorkshire");
+        cityTitleIndex.put(8L, "Newyorkville");
+
+        List<Long> ids = getIds(cityTitleIndex.search("york", 10));
+
+        assertEquals(List.of(4L, 6L, 3L, 7L, 8L), ids);
+    }
+
+    /**
+     * Should rank every short query match before keeping the best ones, however many titles match
+     */
+    @Test
+    public void searchWhenShortQueryMatchesManyTitlesThenKeepTheBestRanked() {
+        for (long id = 100; id < 2100; id++) {
+            cityTitleIndex.put(id, "Aa Town " + id);
+        }
+        cityTitleIndex.put(5000L, "Ab");
+        cityTitleIndex.put(5001L, "A");
+
+        List<Long> ids = getIds(cityTitleIndex.search("a", 3));
+
+        assertEquals(List.of(5001L, 5000L, 100L), ids);
+    }
+
+    /**
+     * Should match short queries against the start of any word
+     */
+    @Test
+    public void searchWhenQueryIsShorterThanTrigramThenMatchWordPrefixes() {
+        List<Long> ids = getIds(cityTitleIndex.search("yo", 10));
+
+        assertEquals(List.of(4L, 6L, 3L), ids);
+    }
+
+    /**
+     * Should ignore case and diacritics
+     */
+    @Test
+    public void searchShouldIgnoreCaseAndDiacritics() {
+        assertEquals(List.of(5L), getIds(cityTitleIndex.search("SAO PAU", 10)));
+    }
+
+    /**
+     * Should return no more results than the limit
+     */
+    @Test
+    public void searchShouldRespectLimit() {
+        assertEquals(2, cityTitleIndex.search("yo", 2).size());
+    }
+
+    /**
+     * Should find a city by its new title only after it is renamed
+     */
+    @Test
+    public void putWhenCityIsRenamedThenOldTitleIsNotFound() {
+        cityTitleIndex.put(2L, "Osaka");
+
+        assertTrue(cityTitleIndex.search("kyoto", 10).isEmpty());
+        assertEquals(List.of(2L), getIds(cityTitleIndex.search("osaka", 10)));
+    }
+
+    /**
+     * Should not find a removed city
+     */
+    @Test
+    public void removeShouldDropCityFromResults() {
+        cityTitleIndex.remove(1L);
+
+        assertTrue(cityTitleIndex.search("tokyo", 10).isEmpty());
+    }
+
+    /**
+     * Should not be ready before the index is built from the database
+     */
+    @Test
+    public void isReadyShouldBeFalseBeforeRebuild() {
+        assertFalse(cityTitleIndex.isReady());
+    }
+
+    private static List<Long> getIds(List<CitySuggestion> suggestions) {
+        return suggestions.stream().map(CitySuggestion::getId).collect(Collectors.toList());
+    }
+}
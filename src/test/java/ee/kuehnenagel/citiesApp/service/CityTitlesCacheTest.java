@@ -0,0 +1,76 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ee.kuehnenagel.citiesApp.model.CityTitlesPayload;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CityTitlesCacheTest {
+
+    @Mock
+    private CityRepository cityRepository;
+
+    private CityTitlesCache cityTitlesCache;
+
+    @Before
+    public void setUp() {
+        cityTitlesCache = new CityTitlesCache(cityRepository, new ObjectMapper());
+    }
+
+    /**
+     * Should serve the stored payload until a write invalidates it
+     */
+    @Test
+    public void getWhenNotInvalidatedThenReuseStoredPayload() {
+        when(cityRepository.findAllTitles()).thenReturn(List.of("Tokyo", "Kyoto"))
+                .thenReturn(List.of("Tokyo", "Osaka"));
+
+        CityTitlesPayload first = cityTitlesCache.get();
+        CityTitlesPayload second = cityTitlesCache.get();
+        cityTitlesCache.invalidate();
+        CityTitlesPayload third = cityTitlesCache.get();
+
+        assertSame(first, second);
+        assertEquals("[\"Tokyo\",\"Osaka\"]", new String(third.getJson(), StandardCharsets.UTF_8));
+        assertNotEquals(first.getETag(), third.getETag());
+        verify(cityRepository, times(2)).findAllTitles();
+    }
+
+    /**
+     * Should compress the same JSON and keep the tag while the titles do not change
+     */
+    @Test
+    public void getWhenTitlesAreUnchangedThenKeepETagAndGzipTheJson() throws IOException {
+        when(cityRepository.findAllTitles()).thenReturn(List.of("Tallinn", "Tartu"));
+
+        CityTitlesPayload first = cityTitlesCache.get();
+        cityTitlesCache.invalidate();
+        CityTitlesPayload second = cityTitlesCache.get();
+
+        assertEquals(first.getETag(), second.getETag());
+        assertNotEquals(first.getETag(), first.getGzipETag());
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(first.getGzip()))) {
+            assertArrayEquals(first.getJson(), gzip.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.City;
+import ee.kuehnenagel.citiesApp.model.StoredImage;
+import ee.kuehnenagel.citiesApp.repo.CityBatchRepository;
+import ee.kuehnenagel.citiesApp.repo.CityRepository;
+import ee.kuehnenagel.citiesApp.utils.StatusEnum;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.data.domain.Pageable;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ImagePrefetchServiceImplTest {
+
+    @Mock
+    private CityRepository cityRepository;
+
+    @Mock
+    private CityBatchRepository cityBatchRepository;
+
+    @Mock
+    private CityImageDownloader cityImageDownloader;
+
+    @Captor
+    private ArgumentCaptor<List<City>> written;
+
+    private ImagePrefetchServiceImpl imagePrefetchService;
+
+    @After
+    public void tearDown() {
+        if (imagePrefetchService != null) {
+            imagePrefetchService.shutdown();
+        }
+    }
+
+    /**
+     * Should retry a failing download with growing backoff and write only the downloaded cities in one batch
+     */
+    @Test
+    public void startPrefetchWhenDownloadFailsThenRetryWithBackoff() throws Exception {
+        City tallinn = city(1L, "https://a.example.com/tallinn.jpg");
+        City tartu = city(2L, "https://a.example.com/tartu.jpg");
+        givenCities(List.of(tallinn, tartu));
+        when(cityImageDownloader.downloadToFileStorage(tallinn))
+                .thenThrow(new IOException("reset"), new IOException("reset"))
+                .thenReturn(storedImage("tallinn"));
+        when(cityImageDownloader.downloadToFileStorage(tartu)).thenThrow(new IOException("gone"));
+        imagePrefetchService = newService(4, 4, 3, 20);
+
+        long startedAt = System.nanoTime();
+        runPrefetch();
+        long elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+
+        verify(cityImageDownloader, times(3)).downloadToFileStorage(tallinn);
+        verify(cityImageDownloader, times(3)).downloadToFileStorage(tartu);
+        // two backoffs of 20 and 40 ms before the last attempt
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 60);
+        verify(cityBatchRepository).updateDownloadedImageLocations(written.capture());
+        assertEquals(1, written.getValue().size());
+        City downloaded = written.getValue().get(0);
+        assertEquals(1L, (long) downloaded.getId());
+        assertEquals(StatusEnum.DOWNLOADED.name(), downloaded.getStatus());
+        assertEquals("tallinn", downloaded.getImageHash());
+        verify(cityImageDownloader).releaseDownload(1L);
+    }
+
+    /**
+     * Should keep at most the per-host limit of downloads running against one host
+     */
+    @Test
+    public void startPrefetchShouldLimitConcurrentDownloadsPerHost() throws Exception {
+        List<City> cities = new ArrayList<>();
+        for (long id = 1; id <= 8; id++) {
+            cities.add(city(id, "https://a.example.com/" + id + ".jpg"));
+        }
+        givenCities(cities);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        when(cityImageDownloader.downloadToFileStorage(any(City.class))).thenAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(30);
+            inFlight.decrementAndGet();
+            return storedImage("hash");
+        });
+        imagePrefetchService = newService(8, 2, 1, 0);
+
+        runPrefetch();
+
+        assertEquals(2, maxInFlight.get());
+        verify(cityBatchRepository).updateDownloadedImageLocations(written.capture());
+        assertEquals(8, written.getValue().size());
+    }
+
+    private ImagePrefetchServiceImpl newService(int threads, int perHostConcurrency, int maxAttempts, long backoffMillis) {
+        return new ImagePrefetchServiceImpl(cityRepository, cityBatchRepository, cityImageDownloader,
+                threads, perHostConcurrency, maxAttempts, backoffMillis, 100);
+    }
+
+    private void givenCities(List<City> cities) {
+        when(cityRepository.findByStatusAndIdGreaterThanOrderByIdAsc(eq(StatusEnum.FROM_CSV.name()), anyLong(),
+                any(Pageable.class))).thenReturn(cities);
+    }
+
+    private void runPrefetch() throws InterruptedException {
+        assertTrue(imagePrefetchService.startPrefetch());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (imagePrefetchService.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(imagePrefetchService.isRunning());
+    }
+
+    private static City city(Long id, String url) {
+        return new City(id, "City " + id, url, StatusEnum.FROM_CSV.name());
+    }
+
+    private static StoredImage storedImage(String hash) {
+        return new StoredImage(Paths.get("images", hash + ".jpg"), hash, Instant.EPOCH);
+    }
+}
@@ -0,0 +1,153 @@
+package ee.kuehnenagel.citiesApp.service;
+
+import ee.kuehnenagel.citiesApp.model.CitySyncResult;
+import ee.kuehnenagel.citiesApp.model.ImportJob;
+import ee.kuehnenagel.citiesApp.model.ImportProgress;
+import ee.kuehnenagel.citiesApp.utils.ImportStatusEnum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ImportJobServiceImplTest {
+
+    @Mock
+    private CityService cityService;
+
+    @Mock
+    private CityTitleIndex cityTitleIndex;
+
+    private ImportJobServiceImpl importJobService;
+
+    @Before
+    public void setUp() {
+        importJobService = new ImportJobServiceImpl(cityService, cityTitleIndex, 20);
+    }
+
+    @After
+    public void tearDown() {
+        importJobService.shutdown();
+    }
+
+    /**
+     * Should run the submitted import in the background and report its progress and result
+     */
+    @Test
+    public void submitImportShouldCompleteJobWithResult() throws InterruptedException {
+        CitySyncResult result = new CitySyncResult(2, 2, 0, 0, 0, 0, 0, new ArrayList<>());
+        when(cityService.syncCitiesFromCsv(any(ImportProgress.class))).thenAnswer(invocation -> {
+            ImportProgress progress = invocation.getArgument(0);
+            progress.onRowParsed();
+            progress.onRowParsed();
+            progress.onRowsWritten(2, 2);
+            return result;
+        });
+
+        ImportJob job = importJobService.submitImport();
+
+        awaitFinished(job);
+        assertEquals(ImportStatusEnum.COMPLETED, job.getStatus());
+        assertSame(result, job.getResult());
+        assertEquals(2, job.getRowsParsed());
+        assertEquals(2, job.getImagesQueued());
+        assertSame(job, importJobService.getJob(job.getId()));
+    }
+
+    /**
+     * Should stop a running import when it is cancelled and rebuild the title index
+     */
+    @Test
+    public void cancelJobWhenImportIsRunningThenCancelIt() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        when(cityService.syncCitiesFromCsv(any(ImportProgress.class))).thenAnswer(invocation -> {
+            ImportProgress progress = invocation.getArgument(0);
+            started.countDown();
+            while (!progress.isCancelRequested()) {
+                Thread.sleep(5);
+            }
+            throw new CancellationException();
+        });
+
+        ImportJob job = importJobService.submitImport();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        importJobService.cancelJob(job.getId());
+
+        awaitFinished(job);
+        assertEquals(ImportStatusEnum.CANCELLED, job.getStatus());
+        verify(cityTitleIndex).rebuild();
+    }
+
+    /**
+     * Should queue a synchronous import behind the running job and return its result once it ran
+     */
+    @Test
+    public void runImportWhenJobIsRunningThenWaitForIt() throws Exception {
+        CitySyncResult result = new CitySyncResult(1, 1, 0, 0, 0, 0, 0, new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        when(cityService.syncCitiesFromCsv(any(ImportProgress.class))).thenAnswer(invocation -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            running.decrementAndGet();
+            return result;
+        });
+        ImportJob job = importJobService.submitImport();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<CitySyncResult> syncResult = caller.submit(() -> importJobService.runImport());
+            Thread.sleep(50);
+            assertFalse(syncResult.isDone());
+            release.countDown();
+
+            assertSame(result, syncResult.get(5, TimeUnit.SECONDS));
+            awaitFinished(job);
+            assertEquals(1, maxRunning.get());
+            assertEquals(2, importJobService.getJobs().size());
+        } finally {
+            caller.shutdownNow();
+        }
+    }
+
+    /**
+     * Should throw when the synchronous import fails
+     */
+    @Test(expected = IllegalStateException.class)
+    public void runImportWhenImportFailsThenThrowException() {
+        when(cityService.syncCitiesFromCsv(any(ImportProgress.class))).thenThrow(new IllegalArgumentException("bad csv"));
+
+        importJobService.runImport();
+    }
+
+    private static void awaitFinished(ImportJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!job.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(job.isFinished());
+    }
+}
@@ -0,0 +1,180 @@
+package ee.kuehnenagel.citiesApp.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CsvParserTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final CsvParser csvParser = new CsvParser(',');
+
+    /**
+     * Should read quoted fields with delimiters, escaped quotes and line breaks
+     */
+    @Test
+    public void parseShouldReadQuotedFields() {
+        List<CsvRecord> records = parse("\uFEFFid,name,photo\r\n"
+                + "1,\"Washington, D.C.\",a.jpg\r\n"
+                + "2,\"The \"\"Big\"\" Apple\",b.jpg\n"
+                + "\n"
+                + "3,\"Two\nLines\",\n");
+
+        assertEquals(4, records.size());
+        assertArrayEquals(new String[]{"id", "name", "photo"}, records.get(0).getFields());
+        assertArrayEquals(new String[]{"1", "Washington, D.C.", "a.jpg"}, records.get(1).getFields());
+        assertArrayEquals(new String[]{"2", "The \"Big\" Apple", "b.jpg"}, records.get(2).getFields());
+        assertArrayEquals(new String[]{"3", "Two\nLines", ""}, records.get(3).getFields());
+        assertEquals(5, records.get(3).getLineNumber());
+    }
+
+    /**
+     * Should report a malformed record and continue with the next line
+     */
+    @Test
+    public void parseWhenRecordIsMalformedThenReportItAndContinue() {
+        List<CsvRecord> records = parse("1,\"Tallinn\"x,a.jpg\n2,Tartu,b.jpg\n3,\"Narva");
+
+        assertEquals(3, records.size());
+        assertFalse(records.get(0).isValid());
+        assertEquals("Unexpected character after closing quote", records.get(0).getError());
+        assertTrue(records.get(1).isValid());
+        assertArrayEquals(new String[]{"2", "Tartu", "b.jpg"}, records.get(1).getFields());
+        assertEquals("Unterminated quoted field", records.get(2).getError());
+        assertEquals(3, records.get(2).getLineNumber());
+    }
+
+    /**
+     * Should return the same records in the same order when the file is parsed in parallel chunks
+     */
+    @Test
+    public void parseFileInParallelChunksShouldMatchSequentialParse() throws IOException {
+        StringBuilder csv = new StringBuilder("id,name,photo\n");
+        for (int i = 1; i <= 2000; i++) {
+            csv.append(i).append(",\"City ").append(i).append(i % 7 == 0 ? ",\nwith a line break" : "")
+                    .append("\",https://example.com/").append(i).append(".jpg\n");
+        }
+        Path file = temporaryFolder.newFile("cities.csv").toPath();
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<String> sequential = toStrings(csvParser.parse(file, 1, 1024));
+        List<String> parallel = toStrings(csvParser.parse(file, 4, 1024));
+
+        assertEquals(2001, sequential.size());
+        assertEquals(sequential, parallel);
+        assertTrue(csvParser.findChunks(file, 1024).size() > 10);
+    }
+
+    /**
+     * Should take a quote inside an unquoted field as text
+     */
+    @Test
+    public void parseWhenUnquotedFieldContainsQuoteThenKeepItAsText() {
+        List<CsvRecord> records = parse("1,O\"Brien,a.jpg\n2,Tartu,b.jpg\n");
+
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[]{"1", "O\"Brien", "a.jpg"}, records.get(0).getFields());
+        assertArrayEquals(new String[]{"2", "Tartu", "b.jpg"}, records.get(1).getFields());
+    }
+
+    /**
+     * Should report a quoted field which is never closed as one record running to the end of the input
+     */
+    @Test
+    public void parseWhenQuoteIsUnterminatedThenReportRestOfInputAsOneRecord() {
+        List<CsvRecord> records = parse("1,Tallinn,a.jpg\n2,\"Narva,b.jpg\n3,Tartu,c.jpg\n4,Pärnu,d.jpg\n");
+
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[]{"1", "Tallinn", "a.jpg"}, records.get(0).getFields());
+        assertEquals("Unterminated quoted field", records.get(1).getError());
+        assertEquals(2, records.get(1).getLineNumber());
+    }
+
+    /**
+     * Should read a quoted field with any number of line breaks, sequentially and in parallel chunks
+     */
+    @Test
+    public void parseWhenQuotedFieldHasManyLineBreaksThenReadIt() throws IOException {
+        StringBuilder description = new StringBuilder("Narva");
+        for (int i = 0; i < 150; i++) {
+            description.append('\n').append(i).append(",Tartu");
+        }
+        StringBuilder csv = new StringBuilder("id,name,photo\n");
+        for (int i = 1; i <= 100; i++) {
+            csv.append(i).append(",\"").append(i == 50 ? description : "City " + i).append("\",a.jpg\n");
+        }
+        Path file = temporaryFolder.newFile("cities.csv").toPath();
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<String> sequential = toStrings(csvParser.parse(file, 1, 256));
+        List<String> parallel = toStrings(csvParser.parse(file, 4, 256));
+
+        assertEquals(101, sequential.size());
+        assertEquals("51:50|" + description + "|a.jpg", sequential.get(50));
+        assertEquals("202:51|City 51|a.jpg", sequential.get(51));
+        assertEquals(sequential, parallel);
+        assertTrue(csvParser.findChunks(file, 256).size() > 5);
+    }
+
+    /**
+     * Should find the same records in parallel chunks when unquoted fields contain quotes and a quote is unterminated
+     */
+    @Test
+    public void parseFileInParallelChunksWhenQuotesAreUnbalancedThenMatchSequentialParse() throws IOException {
+        StringBuilder csv = new StringBuilder("id,name,photo\n");
+        for (int i = 1; i <= 2000; i++) {
+            if (i == 1500) {
+                csv.append(i).append(",\"Unterminated,https://example.com/").append(i).append(".jpg\n");
+            } else if (i > 1500) {
+                csv.append(i).append(",City ").append(i).append(",https://example.com/").append(i).append(".jpg\n");
+            } else if (i % 5 == 0) {
+                csv.append(i).append(",O\"Brien ").append(i).append(",https://example.com/").append(i).append(".jpg\n");
+            } else {
+                csv.append(i).append(",\"City ").append(i).append(i % 7 == 0 ? ",\nwith a line break" : "")
+                        .append("\",https://example.com/").append(i).append(".jpg\n");
+            }
+        }
+        Path file = temporaryFolder.newFile("cities.csv").toPath();
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<String> sequential = toStrings(csvParser.parse(file, 1, 1024));
+        List<String> parallel = toStrings(csvParser.parse(file, 4, 1024));
+
+        assertEquals(1501, sequential.size());
+        assertEquals("1673:Unterminated quoted field", sequential.get(1500));
+        assertTrue(sequential.contains("1611:1445|O\"Brien 1445|https://example.com/1445.jpg"));
+        assertEquals(sequential, parallel);
+        assertTrue(csvParser.findChunks(file, 1024).size() > 10);
+    }
+
+    private List<CsvRecord> parse(String csv) {
+        try (Stream<CsvRecord> records = csvParser.parse(new StringReader(csv))) {
+            return records.collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> toStrings(Stream<CsvRecord> records) {
+        try (records) {
+            return records
+                    .map(record -> record.getLineNumber() + ":"
+                            + (record.isValid() ? String.join("|", record.getFields()) : record.getError()))
+                    .collect(Collectors.toList());
+        }
+    }
+}